@@ -0,0 +1,765 @@
+package com.sup.keycloak.oidc.mapper;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.representations.AccessToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a mapper config over every user of a realm export or attribute dump, to see what a change does before
+ * it is made in production. `./gradlew evaluateMapper` runs it, see build.gradle.
+ *
+ * The input is read as a stream, one user at a time, and handed in batches to a worker per core. Each user is
+ * mapped by the same code as `setClaim`, from the values onwards, and put in a token. Each value is then mapped
+ * on its own as well, to find the values that are slow to split. Only the counts, a bounded number of distinct
+ * claim values and the slowest values are kept, so memory does not grow with the input.
+ *
+ * Group attributes are not in a realm export's users, so Aggregate attribute values has no effect here.
+ */
+public final class MapperConfigEvaluator {
+
+	public static final int DEFAULT_MAX_DISTINCT = 10_000;
+	public static final int DEFAULT_OUTLIERS = 10;
+	public static final int DEFAULT_TOP = 20;
+
+	static final String MAPPER_ID = "offline-evaluator";
+
+	private static final int BATCH_SIZE = 256;
+	// how often a reader waiting on a full queue checks that the workers are still running.
+	private static final long PUT_POLL_MILLIS = 100;
+	private static final int MAX_VALUE_COUNT = 10;
+	private static final int MAX_SHOWN_LENGTH = 80;
+	private static final String USERS = "users";
+	// read from the user itself in a realm export, as Keycloak does for these attribute names.
+	private static final List<String> USER_PROPERTIES = Arrays.asList("username", "email", "firstName", "lastName");
+
+	private final ProtocolMapperModel mappingModel;
+	private final int threads;
+	private final int maxDistinct;
+	private final int outlierCount;
+
+	/**
+	 * @param mappingModel The mapper config to evaluate.
+	 * @param threads      The number of workers.
+	 * @param maxDistinct  The most distinct values counted for each claim by each worker, the rest are counted together.
+	 * @param outlierCount The number of slowest values to report, `0` to not time the values on their own.
+	 */
+	public MapperConfigEvaluator(final ProtocolMapperModel mappingModel, final int threads, final int maxDistinct,
+			final int outlierCount) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be at least 1, was " + threads);
+		}
+		this.mappingModel = mappingModel;
+		this.threads = threads;
+		this.maxDistinct = maxDistinct;
+		this.outlierCount = outlierCount;
+	}
+
+	/**
+	 * How the users are read.
+	 */
+	public enum InputFormat {
+
+		/**
+		 * A realm export, or a file of its users, with a `users` array. An array of users on its own works too.
+		 */
+		REALM_EXPORT,
+
+		/**
+		 * One attribute value per line. A line `user<TAB>value` gives the value to that user, and consecutive
+		 * lines for the same user are one multivalued attribute. A line without a tab is a user of its own.
+		 */
+		LINES;
+
+		/**
+		 * @return {@link #REALM_EXPORT} for a `.json` file, otherwise {@link #LINES}.
+		 */
+		public static InputFormat fromFileName(final String fileName) {
+			return fileName.toLowerCase(Locale.ROOT).endsWith(".json") ? REALM_EXPORT : LINES;
+		}
+
+		/**
+		 * @param argument The `--format` argument, `realm-export` or `lines`.
+		 * @throws IllegalArgumentException If the argument is neither.
+		 */
+		public static InputFormat fromArgument(final String argument) {
+			switch (argument) {
+				case "realm-export":
+					return REALM_EXPORT;
+				case "lines":
+					return LINES;
+				default:
+					throw new IllegalArgumentException("Expected --format realm-export or lines, was " + argument);
+			}
+		}
+	}
+
+	/**
+	 * Map every user of the input.
+	 *
+	 * @param input  The input, read once and not closed.
+	 * @param format How the input is read.
+	 * @return What the mapper config did to the users.
+	 * @throws IOException If the input cannot be read or is not in the format.
+	 */
+	public Report evaluate(final InputStream input, final InputFormat format) throws IOException {
+		// the run's own counters, so a Keycloak in the same JVM neither sees nor shares them.
+		final SplitPlan plan = SplitPlan.compile(mappingModel, new SplitMetrics(MAPPER_ID));
+		// maps the values one at a time to time them, with counters of its own so no value is counted twice.
+		final SplitPlan probe = SplitPlan.compile(mappingModel, new SplitMetrics(MAPPER_ID));
+		final BlockingQueue<List<UserValues>> queue = new ArrayBlockingQueue<List<UserValues>>(threads * 4);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			final Thread thread = new Thread(runnable, "mapper-evaluator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final List<Future<Stats>> workers = new ArrayList<Future<Stats>>();
+		final long start = System.nanoTime();
+		try {
+			for (int i = 0; i < threads; i++) {
+				workers.add(executor.submit(() -> work(queue, plan, probe)));
+			}
+			final Batcher batcher = new Batcher(queue, workers);
+			if (format == InputFormat.REALM_EXPORT) {
+				readRealmExport(input, plan.getAttributeName(), batcher);
+			} else {
+				readLines(input, batcher);
+			}
+			batcher.flush();
+			// an empty batch tells a worker there are no more users.
+			for (int i = 0; i < threads; i++) {
+				put(queue, Collections.<UserValues>emptyList(), workers);
+			}
+			final Stats total = new Stats(maxDistinct, outlierCount);
+			for (Future<Stats> worker : workers) {
+				total.merge(worker.get());
+			}
+			return new Report(plan, total, System.nanoTime() - start);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while evaluating", ex);
+		} catch (ExecutionException ex) {
+			throw new IOException("A worker failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Stats work(final BlockingQueue<List<UserValues>> queue, final SplitPlan plan, final SplitPlan probe)
+			throws InterruptedException {
+		final Stats stats = new Stats(maxDistinct, outlierCount);
+		while (true) {
+			final List<UserValues> batch = queue.take();
+			if (batch.isEmpty()) {
+				return stats;
+			}
+			for (UserValues user : batch) {
+				evaluate(user, plan, probe, stats);
+			}
+		}
+	}
+
+	@SuppressWarnings("PMD.AvoidCatchingGenericException")
+	private void evaluate(final UserValues user, final SplitPlan plan, final SplitPlan probe, final Stats stats) {
+		final AccessToken token = new AccessToken();
+		final long start = System.nanoTime();
+		final long nanos;
+		try {
+			final MappedClaims mapped = new MappedClaims(plan);
+			UserAttributeSplitterMapper.mapValues(mapped, mappingModel, plan, user.values);
+			mapped.applyTo(token);
+			nanos = System.nanoTime() - start;
+			if (outlierCount > 0) {
+				for (String value : user.values) {
+					stats.recordOutlier(new Outlier(user.username, value, time(value, probe)));
+				}
+			}
+		} catch (RuntimeException ex) {
+			// EG: a claim JSON type the values do not convert to. Keycloak would fail the token.
+			stats.recordError(user, ex);
+			return;
+		}
+		// the latency of the whole user, as Keycloak records it for a token.
+		plan.getMetrics().recordInvocation(nanos);
+		stats.record(token.getOtherClaims());
+	}
+
+	/**
+	 * @return How long the value took to map on its own.
+	 */
+	private long time(final String value, final SplitPlan probe) {
+		final List<String> values = Collections.singletonList(value);
+		final long start = System.nanoTime();
+		UserAttributeSplitterMapper.mapValues(new MappedClaims(probe), mappingModel, probe, values);
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Hand a batch to the workers, waiting while the queue is full, but not for a worker that has failed.
+	 *
+	 * @throws IOException If a worker failed, with the worker's exception as the cause.
+	 */
+	static <T> void put(final BlockingQueue<List<UserValues>> queue, final List<UserValues> batch,
+			final List<Future<T>> workers) throws IOException {
+		try {
+			while (!queue.offer(batch, PUT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				for (Future<T> worker : workers) {
+					if (worker.isDone()) {
+						// throws if the worker failed, a worker only returns once it is told there are no more users.
+						worker.get();
+					}
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading", ex);
+		} catch (ExecutionException ex) {
+			throw new IOException("A worker failed", ex.getCause());
+		}
+	}
+
+	/**
+	 * Read the users of a realm export, one at a time.
+	 */
+	static void readRealmExport(final InputStream input, final String attributeName, final UserConsumer users)
+			throws IOException {
+		final ObjectMapper mapper = new ObjectMapper();
+		try (JsonParser parser = mapper.getFactory().createParser(input)) {
+			final JsonToken first = parser.nextToken();
+			if (first == JsonToken.START_ARRAY) {
+				readUsers(parser, mapper, attributeName, users);
+				return;
+			}
+			if (first != JsonToken.START_OBJECT) {
+				throw new IOException("Expected a realm export, or an array of users");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				if (parser.nextToken() == JsonToken.START_ARRAY && USERS.equals(field)) {
+					readUsers(parser, mapper, attributeName, users);
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+
+	private static void readUsers(final JsonParser parser, final ObjectMapper mapper, final String attributeName,
+			final UserConsumer users) throws IOException {
+		long index = 0;
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			// only one user is ever read into memory.
+			final JsonNode user = mapper.readTree(parser);
+			users.accept(new UserValues(user.path("username").asText("user " + index), valuesOf(user, attributeName)));
+			index++;
+		}
+	}
+
+	private static List<String> valuesOf(final JsonNode user, final String attributeName) {
+		if (attributeName == null) {
+			return Collections.emptyList();
+		}
+		final JsonNode attribute = user.path("attributes").path(attributeName);
+		if (attribute.isArray()) {
+			final List<String> values = new ArrayList<String>(attribute.size());
+			for (JsonNode value : attribute) {
+				values.add(value.asText());
+			}
+			return values;
+		}
+		if (attribute.isValueNode()) {
+			return Collections.singletonList(attribute.asText());
+		}
+		final JsonNode property = user.get(attributeName);
+		return USER_PROPERTIES.contains(attributeName) && property != null && property.isValueNode()
+				? Collections.singletonList(property.asText())
+				: Collections.<String>emptyList();
+	}
+
+	/**
+	 * Read the users of a line per value dump, one at a time.
+	 */
+	@SuppressWarnings("PMD.AssignmentInOperand")
+	static void readLines(final InputStream input, final UserConsumer users) throws IOException {
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		String username = null;
+		List<String> values = new ArrayList<String>();
+		long lineNumber = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.isEmpty()) {
+				continue;
+			}
+			final int tab = line.indexOf('\t');
+			final String lineUser = tab < 0 ? "line " + lineNumber : line.substring(0, tab);
+			if (username != null && !username.equals(lineUser)) {
+				users.accept(new UserValues(username, values));
+				values = new ArrayList<String>();
+			}
+			username = lineUser;
+			values.add(tab < 0 ? line : line.substring(tab + 1));
+		}
+		if (username != null) {
+			users.accept(new UserValues(username, values));
+		}
+	}
+
+	/**
+	 * The values of one user's attribute.
+	 */
+	static final class UserValues {
+
+		private final String username;
+		private final Collection<String> values;
+
+		UserValues(final String username, final Collection<String> values) {
+			this.username = username;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Takes the users as they are read.
+	 */
+	@FunctionalInterface
+	interface UserConsumer {
+
+		/**
+		 * @throws IOException If the user cannot be handed on, which stops the reading.
+		 */
+		void accept(UserValues user) throws IOException;
+	}
+
+	/**
+	 * Collects users into batches for the workers, so the queue is not touched for every user.
+	 */
+	private static final class Batcher implements UserConsumer {
+
+		private final BlockingQueue<List<UserValues>> queue;
+		private final List<Future<Stats>> workers;
+		private List<UserValues> batch = new ArrayList<UserValues>(BATCH_SIZE);
+
+		Batcher(final BlockingQueue<List<UserValues>> queue, final List<Future<Stats>> workers) {
+			this.queue = queue;
+			this.workers = workers;
+		}
+
+		@Override
+		public void accept(final UserValues user) throws IOException {
+			batch.add(user);
+			if (batch.size() >= BATCH_SIZE) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			if (!batch.isEmpty()) {
+				put(queue, batch, workers);
+				batch = new ArrayList<UserValues>(BATCH_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * The results of one worker, merged into one for the report.
+	 */
+	static final class Stats {
+
+		private final int maxDistinct;
+		private final int outlierCount;
+		// claim name, or path for a nested claim, to the times each value was put in it.
+		private final Map<String, Map<String, long[]>> claimValues = new TreeMap<String, Map<String, long[]>>();
+		private final Map<String, long[]> otherValues = new HashMap<String, long[]>();
+		// the number of users with 0, 1, 2 ... values in their claims, the last counts that many or more.
+		private final long[] valueCounts = new long[MAX_VALUE_COUNT + 1];
+		private final PriorityQueue<Outlier> outliers = new PriorityQueue<Outlier>();
+		private long users;
+		private long errors;
+		private String firstError;
+
+		Stats(final int maxDistinct, final int outlierCount) {
+			this.maxDistinct = maxDistinct;
+			this.outlierCount = outlierCount;
+		}
+
+		void record(final Map<String, Object> claims) {
+			users++;
+			final int valueCount = count(null, claims);
+			valueCounts[Math.min(valueCount, MAX_VALUE_COUNT)]++;
+		}
+
+		void recordError(final UserValues user, final RuntimeException ex) {
+			users++;
+			errors++;
+			if (firstError == null) {
+				firstError = user.username + ": " + ex;
+			}
+		}
+
+		/**
+		 * Count the values of every claim, nested claims by their path.
+		 *
+		 * @return The number of values.
+		 */
+		@SuppressWarnings("unchecked")
+		private int count(final String path, final Map<String, Object> claims) {
+			int valueCount = 0;
+			for (Map.Entry<String, Object> claim : claims.entrySet()) {
+				final String claimPath = path == null ? claim.getKey() : path + '.' + claim.getKey();
+				final Object value = claim.getValue();
+				if (value instanceof Map) {
+					valueCount += count(claimPath, (Map<String, Object>) value);
+				} else if (value instanceof Collection) {
+					for (Object item : (Collection<?>) value) {
+						countValue(claimPath, String.valueOf(item), 1);
+						valueCount++;
+					}
+				} else {
+					countValue(claimPath, String.valueOf(value), 1);
+					valueCount++;
+				}
+			}
+			return valueCount;
+		}
+
+		private void countValue(final String claimPath, final String value, final long times) {
+			final Map<String, long[]> values = claimValues.computeIfAbsent(claimPath, key -> new HashMap<String, long[]>());
+			final long[] count = values.get(value);
+			if (count != null) {
+				count[0] += times;
+			} else if (values.size() < maxDistinct) {
+				values.put(value, new long[] {times});
+			} else {
+				otherValues.computeIfAbsent(claimPath, key -> new long[1])[0] += times;
+			}
+		}
+
+		void recordOutlier(final Outlier outlier) {
+			if (outlierCount <= 0) {
+				return;
+			}
+			if (outliers.size() < outlierCount) {
+				outliers.add(outlier);
+			} else if (outlier.nanos > outliers.peek().nanos) {
+				// the head is the fastest of the slowest values so far.
+				outliers.poll();
+				outliers.add(outlier);
+			}
+		}
+
+		void merge(final Stats other) {
+			users += other.users;
+			errors += other.errors;
+			if (firstError == null) {
+				firstError = other.firstError;
+			}
+			for (int i = 0; i < valueCounts.length; i++) {
+				valueCounts[i] += other.valueCounts[i];
+			}
+			for (Map.Entry<String, Map<String, long[]>> claim : other.claimValues.entrySet()) {
+				for (Map.Entry<String, long[]> value : claim.getValue().entrySet()) {
+					countValue(claim.getKey(), value.getKey(), value.getValue()[0]);
+				}
+			}
+			for (Map.Entry<String, long[]> otherValue : other.otherValues.entrySet()) {
+				otherValues.computeIfAbsent(otherValue.getKey(), key -> new long[1])[0] += otherValue.getValue()[0];
+			}
+			for (Outlier outlier : other.outliers) {
+				recordOutlier(outlier);
+			}
+		}
+	}
+
+	/**
+	 * One of the slowest values to map, EG: a value that runs a regex split token up to its step budget.
+	 */
+	public static final class Outlier implements Comparable<Outlier> {
+
+		private final String username;
+		private final String value;
+		private final long nanos;
+
+		Outlier(final String username, final String value, final long nanos) {
+			this.username = username;
+			this.value = value;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return The user the value belongs to.
+		 */
+		public String getUsername() {
+			return username;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public int compareTo(final Outlier other) {
+			return Long.compare(nanos, other.nanos);
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof Outlier && compareTo((Outlier) other) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(nanos);
+		}
+	}
+
+	/**
+	 * What a mapper config did to the users of an input.
+	 */
+	public static final class Report {
+
+		private final SplitPlan plan;
+		private final Stats stats;
+		private final long elapsedNanos;
+
+		Report(final SplitPlan plan, final Stats stats, final long elapsedNanos) {
+			this.plan = plan;
+			this.stats = stats;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public long getUsers() {
+			return stats.users;
+		}
+
+		/**
+		 * @return The users that could not be mapped, EG: a value that is not a number for a claim of JSON type long.
+		 */
+		public long getErrors() {
+			return stats.errors;
+		}
+
+		public String getFirstError() {
+			return stats.firstError;
+		}
+
+		/**
+		 * @return The split counters of the run, such as values processed, missmatches and budget exceeded.
+		 */
+		public SplitMetrics getMetrics() {
+			return plan.getMetrics();
+		}
+
+		/**
+		 * @return The number of users with 0, 1, 2 ... values in their claims. The last counts that many or more.
+		 */
+		public long[] getValueCounts() {
+			return stats.valueCounts.clone();
+		}
+
+		/**
+		 * @return The claims filled for at least one user, nested claims by their path, EG: `org.tenant`.
+		 */
+		public List<String> getClaimNames() {
+			return new ArrayList<String>(stats.claimValues.keySet());
+		}
+
+		/**
+		 * @param claimName The claim.
+		 * @param top       The most values to return.
+		 * @return The values put in the claim most often, with the number of times, most often first.
+		 */
+		public List<Map.Entry<String, Long>> getTopValues(final String claimName, final int top) {
+			final List<Map.Entry<String, Long>> values = new ArrayList<Map.Entry<String, Long>>();
+			for (Map.Entry<String, long[]> value : stats.claimValues.getOrDefault(claimName,
+					Collections.<String, long[]>emptyMap()).entrySet()) {
+				values.add(new AbstractMap.SimpleImmutableEntry<String, Long>(value.getKey(), value.getValue()[0]));
+			}
+			values.sort((left, right) -> {
+				final int byCount = Long.compare(right.getValue(), left.getValue());
+				return byCount != 0 ? byCount : left.getKey().compareTo(right.getKey());
+			});
+			return values.subList(0, Math.min(top, values.size()));
+		}
+
+		/**
+		 * @return The number of values put in the claim that were not counted on their own, past the distinct limit.
+		 */
+		public long getOtherValues(final String claimName) {
+			final long[] other = stats.otherValues.get(claimName);
+			return other == null ? 0 : other[0];
+		}
+
+		/**
+		 * @return The slowest values to map, slowest first.
+		 */
+		public List<Outlier> getOutliers() {
+			final List<Outlier> outliers = new ArrayList<Outlier>(stats.outliers);
+			outliers.sort(Collections.reverseOrder());
+			return outliers;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public void print(final PrintStream out, final int top) {
+			final SplitMetrics metrics = plan.getMetrics();
+			out.printf("Users: %d in %d ms, errors: %d%n", getUsers(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getErrors());
+			if (getFirstError() != null) {
+				out.printf("  first error: %s%n", getFirstError());
+			}
+			out.printf("Values: %d, split: %d, missmatches: %d (%d skipped), missing attribute: %d%n",
+					metrics.getValuesProcessed(), metrics.getSplitHits(), metrics.getMissmatches(),
+					metrics.getMissmatchesSkipped(), metrics.getMissingAttributes());
+			out.printf("Budget exceeded: %d, pattern fallbacks: %d, truncations: %d%n", metrics.getBudgetExceeded(),
+					metrics.getPatternFallbacks(), metrics.getTruncations());
+			out.printf("Latency per user: p50=%dns p99=%dns p999=%dns%n", metrics.getLatencyP50Nanos(),
+					metrics.getLatencyP99Nanos(), metrics.getLatencyP999Nanos());
+			out.println("Users by number of claim values:");
+			final long[] valueCounts = stats.valueCounts;
+			for (int i = 0; i < valueCounts.length; i++) {
+				if (valueCounts[i] > 0) {
+					out.printf("  %s%d: %d%n", i == MAX_VALUE_COUNT ? ">=" : "", i, valueCounts[i]);
+				}
+			}
+			for (String claimName : getClaimNames()) {
+				out.printf("Claim %s, top %d values:%n", claimName, top);
+				for (Map.Entry<String, Long> value : getTopValues(claimName, top)) {
+					out.printf("  %d  %s%n", value.getValue(), shown(value.getKey()));
+				}
+				if (getOtherValues(claimName) > 0) {
+					out.printf("  %d  (values past the distinct limit)%n", getOtherValues(claimName));
+				}
+			}
+			out.println("Slowest values:");
+			for (Outlier outlier : getOutliers()) {
+				out.printf("  %dns  %s  %s%n", outlier.nanos, outlier.username, shown(outlier.value));
+			}
+			if (plan.isAggregateAttrs()) {
+				out.println("Aggregate attribute values is on, but group attributes are not read from the input.");
+			}
+		}
+
+		private static String shown(final String value) {
+			return value == null || value.length() <= MAX_SHOWN_LENGTH ? value : value.substring(0, MAX_SHOWN_LENGTH) + "...";
+		}
+	}
+
+	/**
+	 * `MapperConfigEvaluator --config <mapper.properties> [--set key=value]... [--format realm-export|lines]
+	 * [--threads n] [--top n] [--outliers n] [--max-distinct n] <input>`
+	 *
+	 * The properties are the mapper config as it is stored, EG: `user.attribute=email`, `claim.name=domain`,
+	 * `split-token=@` and `split-final-value=true`.
+	 */
+	@SuppressWarnings("PMD.DoNotTerminateVM")
+	public static void main(final String[] args) throws IOException {
+		final Map<String, String> config = new HashMap<String, String>();
+		String input = null;
+		InputFormat format = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int top = DEFAULT_TOP;
+		int outliers = DEFAULT_OUTLIERS;
+		int maxDistinct = DEFAULT_MAX_DISTINCT;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				final String arg = args[i];
+				switch (arg) {
+					case "--config":
+						config.putAll(readConfig(args[++i]));
+						break;
+					case "--set":
+						final String entry = args[++i];
+						final int separator = entry.indexOf('=');
+						if (separator <= 0) {
+							throw new IllegalArgumentException("Expected --set key=value, was " + entry);
+						}
+						config.put(entry.substring(0, separator), entry.substring(separator + 1));
+						break;
+					case "--format":
+						format = InputFormat.fromArgument(args[++i]);
+						break;
+					case "--threads":
+						threads = Integer.parseInt(args[++i]);
+						break;
+					case "--top":
+						top = Integer.parseInt(args[++i]);
+						break;
+					case "--outliers":
+						outliers = Integer.parseInt(args[++i]);
+						break;
+					case "--max-distinct":
+						maxDistinct = Integer.parseInt(args[++i]);
+						break;
+					default:
+						input = arg;
+						break;
+				}
+			}
+			if (input == null || config.isEmpty()) {
+				throw new IllegalArgumentException("Expected --config <mapper.properties> and an input file");
+			}
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+			System.err.println(ex.getMessage());
+			System.err.println("Usage: MapperConfigEvaluator --config <mapper.properties> [--set key=value]... "
+					+ "[--format realm-export|lines] [--threads n] [--top n] [--outliers n] [--max-distinct n] <input>");
+			System.exit(2);
+			return;
+		}
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setName(MAPPER_ID);
+		mappingModel.setConfig(config);
+		final MapperConfigEvaluator evaluator = new MapperConfigEvaluator(mappingModel, threads, maxDistinct, outliers);
+		try (InputStream in = "-".equals(input) ? System.in : Files.newInputStream(Paths.get(input))) {
+			evaluator.evaluate(in, format == null ? InputFormat.fromFileName(input) : format).print(System.out, top);
+		}
+	}
+
+	private static Map<String, String> readConfig(final String file) throws IOException {
+		final Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(Paths.get(file))) {
+			properties.load(in);
+		}
+		final Map<String, String> config = new HashMap<String, String>();
+		for (String name : properties.stringPropertyNames()) {
+			config.put(name, properties.getProperty(name));
+		}
+		return config;
+	}
+}
@@ -0,0 +1,93 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperUtils;
+import org.keycloak.representations.AccessToken;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Throughput of a whole `setClaim`, driven through `transformAccessToken` with a mocked user
+ * session like the one `UserAttributeSplitterMapperTest` builds.
+ *
+ * The mocks are stub only, so Mockito does not record every invocation while the benchmark runs.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SetClaimBenchmark {
+
+	static final String CLAIM_NAME = "handlerIdClaimNameExample";
+	static final String ATTRIBUTE_NAME = "email";
+
+	@Param({"1", "10"})
+	public int attributeValues;
+
+	@Param({"literal", "regex"})
+	public String splitMode;
+
+	@Param({"false", "true"})
+	public boolean finalValue;
+
+	private UserAttributeSplitterMapper mapper;
+	private ProtocolMapperModel mappingModel;
+	private UserSessionModel userSession;
+	private AccessToken accessToken;
+
+	@Setup
+	public void setUp() {
+		final List<String> values = new ArrayList<String>(attributeValues);
+		for (int i = 0; i < attributeValues; i++) {
+			values.add("user" + i + "@test-email.com.au");
+		}
+		final UserModel user = Mockito.mock(UserModel.class, Mockito.withSettings().stubOnly());
+		when(user.getAttributeStream(ATTRIBUTE_NAME)).thenAnswer(invocation -> values.stream());
+		when(user.getGroupsStream()).thenAnswer(invocation -> java.util.stream.Stream.empty());
+		userSession = Mockito.mock(UserSessionModel.class, Mockito.withSettings().stubOnly());
+		when(userSession.getUser()).thenReturn(user);
+
+		final Map<String, String> config = new HashMap<String, String>();
+		config.put("access.token.claim", "true");
+		config.put("claim.name", CLAIM_NAME);
+		config.put(ProtocolMapperUtils.USER_ATTRIBUTE, ATTRIBUTE_NAME);
+		config.put(ProtocolMapperUtils.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, splitMode);
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, Boolean.toString(finalValue));
+		mappingModel = new ProtocolMapperModel();
+		mappingModel.setId("benchmark-mapper");
+		mappingModel.setConfig(config);
+
+		mapper = new UserAttributeSplitterMapper();
+		accessToken = new AccessToken();
+	}
+
+	@Benchmark
+	public AccessToken setClaim() {
+		accessToken.getOtherClaims().clear();
+		return mapper.transformAccessToken(accessToken, mappingModel, null, userSession, null);
+	}
+}
@@ -0,0 +1,73 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link UserAttributeSplitterMapper#splitValue} for each kind of split token.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SplitValueBenchmark {
+
+	/**
+	 * The split tokens under test, with a value that contains the token and one that does not.
+	 */
+	public enum TokenCase {
+		SINGLE_CHAR("@", SplitMode.REGEX, "paul@test-email.com.au", "paul.test-email.com.au"),
+		MULTI_CHAR("::", SplitMode.REGEX, "tenant::role::read", "tenant:role:read"),
+		REGEX("[@|]", SplitMode.REGEX, "tenant|role@read", "tenant-role-read"),
+		LITERAL_SINGLE_CHAR("|", SplitMode.LITERAL, "tenant|role|read", "tenant-role-read"),
+		LITERAL_MULTI_CHAR("::", SplitMode.LITERAL, "tenant::role::read", "tenant:role:read"),
+		CHARACTER_SET("@|", SplitMode.CHARACTER_SET, "tenant|role@read", "tenant-role-read"),
+		EXTRACT("^CN=([^,]+)", SplitMode.EXTRACT, "CN=Paul Smith,OU=Staff,DC=example,DC=com", "OU=Staff,DC=example,DC=com");
+
+		final String splitToken;
+		final SplitMode splitMode;
+		final String hitValue;
+		final String missmatchValue;
+
+		TokenCase(final String splitToken, final SplitMode splitMode, final String hitValue, final String missmatchValue) {
+			this.splitToken = splitToken;
+			this.splitMode = splitMode;
+			this.hitValue = hitValue;
+			this.missmatchValue = missmatchValue;
+		}
+	}
+
+	@Param
+	public TokenCase tokenCase;
+
+	@Param({"false", "true"})
+	public boolean finalValue;
+
+	@Param({"true", "false"})
+	public boolean hit;
+
+	private String value;
+
+	@Setup
+	public void setUp() {
+		value = hit ? tokenCase.hitValue : tokenCase.missmatchValue;
+	}
+
+	@Benchmark
+	public String splitValue() {
+		return UserAttributeSplitterMapper.splitValue(value, tokenCase.splitToken, tokenCase.splitMode, finalValue, false);
+	}
+}
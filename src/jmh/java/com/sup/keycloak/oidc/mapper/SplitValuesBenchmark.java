@@ -0,0 +1,67 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link UserAttributeSplitterMapper#splitValues} over collections of different sizes,
+ * on the calling thread and split in parallel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SplitValuesBenchmark {
+
+	@Param({"1", "10", "1000"})
+	public int size;
+
+	@Param({"literal", "regex"})
+	public String splitMode;
+
+	@Param({"false", "true"})
+	public boolean finalValue;
+
+	/**
+	 * 0 keeps every size on the calling thread, 256 splits the 1000 value case in parallel.
+	 */
+	@Param({"0", "256"})
+	public int parallelThreshold;
+
+	private List<String> values;
+	private SplitMode mode;
+	private String splitToken;
+
+	@Setup
+	public void setUp() {
+		mode = SplitMode.fromConfig(splitMode);
+		// the same split, written for each mode.
+		splitToken = mode == SplitMode.LITERAL ? "|" : "\\|";
+		values = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			// one value in ten has no split token.
+			values.add(i % 10 == 9 ? "entitlement-" + i : "tenant" + i % 7 + "|role|entitlement-" + i);
+		}
+	}
+
+	@Benchmark
+	public List<String> splitValues() {
+		return UserAttributeSplitterMapper.splitValues(values, splitToken, mode,
+				finalValue ? Splitter.FINAL_SEGMENT : Splitter.FIRST_SEGMENT, true, parallelThreshold);
+	}
+}
@@ -0,0 +1,118 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.List;
+
+/**
+ * The most values and UTF-8 bytes a mapper may put in one claim, from {@link UserAttributeSplitterMapper#MAX_VALUES}
+ * and {@link UserAttributeSplitterMapper#MAX_BYTES}.
+ *
+ * A user with a huge attribute could otherwise push the token past the header limits of a proxy further down
+ * the chain. The bytes counted are those of the values themselves, not of the JSON around them.
+ */
+public final class ClaimBudget {
+
+	/**
+	 * No limit, the default.
+	 */
+	public static final ClaimBudget UNLIMITED = new ClaimBudget(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+	/**
+	 * The first chars that take two and three UTF-8 bytes.
+	 */
+	private static final char TWO_BYTES = 0x80;
+	private static final char THREE_BYTES = 0x800;
+
+	private final int maxValues;
+	private final long maxBytes;
+
+	private ClaimBudget(final int maxValues, final long maxBytes) {
+		this.maxValues = maxValues;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param maxValues The most values in a claim, 0 or less for no limit.
+	 * @param maxBytes  The most UTF-8 bytes in a claim, 0 or less for no limit.
+	 * @return The budget.
+	 */
+	public static ClaimBudget of(final int maxValues, final long maxBytes) {
+		if (maxValues <= 0 && maxBytes <= 0) {
+			return UNLIMITED;
+		}
+		return new ClaimBudget(maxValues <= 0 ? Integer.MAX_VALUE : maxValues, maxBytes <= 0 ? Long.MAX_VALUE : maxBytes);
+	}
+
+	public int getMaxValues() {
+		return maxValues;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return True if the bytes of each value need counting.
+	 */
+	public boolean isByteLimited() {
+		return maxBytes != Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return The UTF-8 length of the value if the bytes are limited, otherwise 0 without looking at it.
+	 */
+	long bytesOf(final String value) {
+		return isByteLimited() ? utf8Length(value) : 0;
+	}
+
+	/**
+	 * @param count The values already in the claim.
+	 * @param bytes The bytes already in the claim.
+	 * @param next  The bytes of the value to add, from {@link #bytesOf(String)}.
+	 * @return True if the value still fits.
+	 */
+	boolean fits(final int count, final long bytes, final long next) {
+		return count < maxValues && bytes + next <= maxBytes;
+	}
+
+	/**
+	 * Cut a list of values down to the budget.
+	 *
+	 * @return True if any values were removed.
+	 */
+	boolean truncate(final List<String> values) {
+		long bytes = 0;
+		for (int i = 0; i < values.size(); i++) {
+			final long next = bytesOf(values.get(i));
+			if (!fits(i, bytes, next)) {
+				values.subList(i, values.size()).clear();
+				return true;
+			}
+			bytes += next;
+		}
+		return false;
+	}
+
+	/**
+	 * Count the UTF-8 bytes of a value without encoding it.
+	 */
+	static long utf8Length(final CharSequence value) {
+		final int length = value.length();
+		long bytes = length;
+		for (int i = 0; i < length; i++) {
+			final char c = value.charAt(i);
+			if (c >= TWO_BYTES) {
+				if (c < THREE_BYTES) {
+					bytes++;
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+					// a supplementary character is four bytes for its two chars.
+					bytes += 2;
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					bytes += 2;
+				}
+				// a lone surrogate is encoded as a single '?', the same as String.getBytes.
+			}
+		}
+		return bytes;
+	}
+}
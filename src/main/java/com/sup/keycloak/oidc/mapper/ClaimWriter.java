@@ -0,0 +1,140 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapperUtils;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.IDToken;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts the value of one claim in a token, the same as `OIDCAttributeMapperHelper.mapClaim`, with the claim
+ * path and JSON type of the mapper read once when the plan is compiled.
+ *
+ * `mapClaim` reads both from the mapper config and splits a nested claim name such as `org.tenant.id` with a
+ * regex on every call. The writer keeps the split path, and converts the Strings and lists of Strings the
+ * mapper produces itself. Any other value, a JSON type, and a single valued claim given more than one value
+ * are left to `OIDCAttributeMapperHelper.mapAttributeValue`, so the claim and any warning stay the same.
+ */
+final class ClaimWriter {
+
+	private static final int STRING = 0;
+	private static final int BOOLEAN = 1;
+	private static final int LONG = 2;
+	private static final int INT = 3;
+	private static final int JSON = 4;
+
+	private final ProtocolMapperModel claimModel;
+	private final String claimName;
+	// null if the mapper has no claim name, the claim is then left out.
+	private final String[] path;
+	private final int type;
+	private final boolean multivalued;
+
+	/**
+	 * @param claimModel The mapper passed to `OIDCAttributeMapperHelper` for the values it converts.
+	 * @param config     The config of that mapper, the claim name, JSON type and multivalued setting are read from.
+	 */
+	@SuppressWarnings("PMD.NullAssignment")
+	ClaimWriter(final ProtocolMapperModel claimModel, final Map<String, String> config) {
+		this.claimModel = claimModel;
+		this.claimName = config.get(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME);
+		this.path = claimName == null ? null : OIDCAttributeMapperHelper.splitClaimPath(claimName).toArray(new String[0]);
+		this.type = typeOf(config.get(OIDCAttributeMapperHelper.JSON_TYPE));
+		this.multivalued = Boolean.parseBoolean(config.get(ProtocolMapperUtils.MULTIVALUED));
+	}
+
+	/**
+	 * @return The converter for a JSON type. A type Keycloak does not know keeps the value as it is, as a String does.
+	 */
+	private static int typeOf(final String jsonType) {
+		switch (jsonType == null ? "" : jsonType) {
+			case "boolean":
+				return BOOLEAN;
+			case "long":
+				return LONG;
+			case "int":
+				return INT;
+			case "JSON":
+				return JSON;
+			default:
+				return STRING;
+		}
+	}
+
+	/**
+	 * Put a value in the token, nothing if it is `null` or an empty collection.
+	 */
+	@SuppressWarnings("unchecked")
+	void write(final IDToken token, final Object value) {
+		if (path == null) {
+			return;
+		}
+		final Object converted = convert(value);
+		if (converted == null) {
+			return;
+		}
+		Map<String, Object> claims = token.getOtherClaims();
+		final int last = path.length - 1;
+		for (int i = 0; i < last; i++) {
+			Map<String, Object> nested = (Map<String, Object>) claims.get(path[i]);
+			if (nested == null) {
+				nested = new HashMap<String, Object>();
+				claims.put(path[i], nested);
+			}
+			claims = nested;
+		}
+		claims.put(path[last], converted);
+	}
+
+	private Object convert(final Object value) {
+		if (value instanceof String && type != JSON) {
+			return convertString((String) value);
+		}
+		if (!(value instanceof Collection) || type == JSON) {
+			return OIDCAttributeMapperHelper.mapAttributeValue(claimModel, value);
+		}
+		final Collection<?> values = (Collection<?>) value;
+		if (values.isEmpty()) {
+			return null;
+		}
+		if (!multivalued) {
+			final Object first = values.iterator().next();
+			// more than one value is logged by Keycloak.
+			return values.size() == 1 && first instanceof String
+					? convertString((String) first)
+					: OIDCAttributeMapperHelper.mapAttributeValue(claimModel, value);
+		}
+		// a fresh list for every token, as Keycloak's, so a later mapper changing one token leaves the others alone.
+		final List<Object> result = new ArrayList<Object>(values.size());
+		for (Object item : values) {
+			if (!(item instanceof String)) {
+				return OIDCAttributeMapperHelper.mapAttributeValue(claimModel, value);
+			}
+			result.add(convertString((String) item));
+		}
+		return result;
+	}
+
+	private Object convertString(final String value) {
+		switch (type) {
+			case BOOLEAN:
+				return Boolean.valueOf(value);
+			case LONG:
+				return Long.valueOf(value);
+			case INT:
+				return Integer.valueOf(value);
+			default:
+				return value;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return claimName;
+	}
+}
@@ -0,0 +1,73 @@
+package com.sup.keycloak.oidc.mapper;
+
+/**
+ * A small insert-only set of strings, used to drop duplicate claim values while they are produced.
+ *
+ * It is a single open addressing array with linear probing, so each entry costs one reference rather
+ * than the node, boxed hash and map that a `HashSet` allocates. The order of the values is kept by the
+ * list they are added to, not by the set.
+ */
+final class CompactStringSet {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private String[] table;
+	private int count;
+
+	/**
+	 * Start small, as many duplicates often reduce to only a few distinct values, and grow when needed.
+	 */
+	CompactStringSet() {
+		this.table = new String[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * @param value The value to add, must not be null.
+	 * @return True if the value was not in the set yet.
+	 */
+	boolean add(final String value) {
+		final int mask = table.length - 1;
+		int index = spread(value.hashCode()) & mask;
+		String existing = table[index];
+		while (existing != null) {
+			if (existing.equals(value)) {
+				return false;
+			}
+			index = (index + 1) & mask;
+			existing = table[index];
+		}
+		table[index] = value;
+		count++;
+		if (count * 2 > table.length) {
+			grow();
+		}
+		return true;
+	}
+
+	int size() {
+		return count;
+	}
+
+	private void grow() {
+		final String[] old = table;
+		table = new String[old.length << 1];
+		final int mask = table.length - 1;
+		for (String value : old) {
+			if (value != null) {
+				int index = spread(value.hashCode()) & mask;
+				while (table[index] != null) {
+					index = (index + 1) & mask;
+				}
+				table[index] = value;
+			}
+		}
+	}
+
+	/**
+	 * Mix the high bits in, as values that share a long prefix often differ only there.
+	 */
+	private static int spread(final int hash) {
+		final int mixed = hash * 0x9E3779B9;
+		return mixed ^ (mixed >>> 16);
+	}
+}
@@ -0,0 +1,220 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the attribute values a group gives its members, keyed by realm, group and attribute.
+ *
+ * A group without the attribute takes it from its nearest ancestor, so resolving it walks up the group
+ * tree. With {@link UserAttributeSplitterMapper#GROUP_CACHE_TTL} set, that walk is done once per group
+ * and reused by every token issued until the entry is older than the TTL.
+ *
+ * When the cache is full one entry is evicted, the oldest not read since eviction last passed over it, so the
+ * groups most users are in stay cached.
+ *
+ * Removed groups and realms are dropped as Keycloak publishes their events. Edited and moved groups are only
+ * published as admin events, which {@link GroupCacheEventListener} handles when it is enabled on the realm.
+ * Otherwise, and on the other nodes of a cluster, those changes show once the entry expires.
+ */
+public final class GroupAttributeCache {
+
+	public static final int DEFAULT_MAX_SIZE = 10_000;
+
+	// Tokens mapped without a realm, EG: in tests.
+	private static final String NO_REALM = "";
+
+	private static final GroupAttributeCache SHARED_CACHE = new GroupAttributeCache(DEFAULT_MAX_SIZE, System::nanoTime);
+
+	private final int maxSize;
+	private final LongSupplier clock;
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+	private final ConcurrentLinkedQueue<Key> insertionOrder = new ConcurrentLinkedQueue<Key>();
+
+	public GroupAttributeCache(final int maxSize) {
+		this(maxSize, System::nanoTime);
+	}
+
+	/**
+	 * @param clock The time in nanoseconds, replaced in tests.
+	 */
+	GroupAttributeCache(final int maxSize, final LongSupplier clock) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return The cache shared by every mapper instance.
+	 */
+	public static GroupAttributeCache shared() {
+		return SHARED_CACHE;
+	}
+
+	/**
+	 * Resolve the attribute of a user and of all their groups, the same as
+	 * `KeycloakModelUtils.resolveAttribute(user, attributeName, true)` but with the groups read from the cache.
+	 *
+	 * @param realmId       The realm of the user.
+	 * @param user          The user.
+	 * @param attributeName The attribute.
+	 * @param ttlNanos      How long a group's values are reused.
+	 * @return The distinct values, empty if neither the user nor a group has the attribute.
+	 */
+	public Collection<String> resolveAggregated(final String realmId, final UserModel user, final String attributeName,
+			final long ttlNanos) {
+		final Set<String> values = new HashSet<String>();
+		user.getAttributeStream(attributeName).forEach(values::add);
+		user.getGroupsStream().forEach(group -> values.addAll(resolve(realmId, group, attributeName, ttlNanos)));
+		return values;
+	}
+
+	/**
+	 * @return The values of the group or of its nearest ancestor that has the attribute, empty if none has.
+	 */
+	public List<String> resolve(final String realmId, final GroupModel group, final String attributeName,
+			final long ttlNanos) {
+		final Key key = new Key(realmId == null ? NO_REALM : realmId, group.getId(), attributeName);
+		final long now = clock.getAsLong();
+		final Entry cached = entries.get(key);
+		if (cached != null && now - cached.loadedAt < ttlNanos) {
+			if (!cached.used) {
+				cached.used = true;
+			}
+			return cached.values;
+		}
+		final List<String> resolved = KeycloakModelUtils.resolveAttribute(group, attributeName);
+		final List<String> values = resolved == null || resolved.isEmpty()
+				? Collections.<String>emptyList()
+				: Collections.unmodifiableList(new ArrayList<String>(resolved));
+		if (entries.put(key, new Entry(values, now)) == null) {
+			// a reloaded entry keeps its place.
+			insertionOrder.add(key);
+			evictIfFull();
+		}
+		return values;
+	}
+
+	private void evictIfFull() {
+		while (entries.size() > maxSize) {
+			final Key eldest = insertionOrder.poll();
+			if (eldest == null) {
+				return;
+			}
+			final Entry entry = entries.get(eldest);
+			if (entry == null) {
+				continue;
+			}
+			if (entry.used) {
+				// read since the last pass, so it goes to the back.
+				entry.used = false;
+				insertionOrder.add(eldest);
+			} else {
+				entries.remove(eldest, entry);
+			}
+		}
+	}
+
+	/**
+	 * Drop the entries of removed groups and realms, registered with the session factory in `postInit`.
+	 */
+	public void onEvent(final ProviderEvent event) {
+		if (event instanceof GroupModel.GroupRemovedEvent) {
+			final GroupModel.GroupRemovedEvent removed = (GroupModel.GroupRemovedEvent) event;
+			invalidateGroup(removed.getGroup().getId());
+		} else if (event instanceof RealmModel.RealmRemovedEvent) {
+			invalidateRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+		}
+	}
+
+	/**
+	 * Forget a group. Keycloak removes and publishes the subgroups of a removed group one by one.
+	 *
+	 * @param groupId The group id.
+	 */
+	public void invalidateGroup(final String groupId) {
+		entries.keySet().removeIf(key -> key.groupId.equals(groupId));
+		insertionOrder.removeIf(key -> key.groupId.equals(groupId));
+	}
+
+	/**
+	 * Forget every group of a realm.
+	 *
+	 * @param realmId The realm id.
+	 */
+	public void invalidateRealm(final String realmId) {
+		final String id = realmId == null ? NO_REALM : realmId;
+		entries.keySet().removeIf(key -> key.realmId.equals(id));
+		insertionOrder.removeIf(key -> key.realmId.equals(id));
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+		insertionOrder.clear();
+	}
+
+	private static final class Key {
+
+		private final String realmId;
+		private final String groupId;
+		private final String attributeName;
+		private final int hash;
+
+		Key(final String realmId, final String groupId, final String attributeName) {
+			this.realmId = realmId;
+			this.groupId = groupId;
+			this.attributeName = attributeName;
+			this.hash = (realmId.hashCode() * 31 + groupId.hashCode()) * 31 + attributeName.hashCode();
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (this == other) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key) other;
+			return hash == key.hash && groupId.equals(key.groupId) && attributeName.equals(key.attributeName)
+					&& realmId.equals(key.realmId);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class Entry {
+
+		private final List<String> values;
+		private final long loadedAt;
+		// set when the entry is read, cleared when eviction passes over it.
+		private volatile boolean used;
+
+		Entry(final List<String> values, final long loadedAt) {
+			this.values = values;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
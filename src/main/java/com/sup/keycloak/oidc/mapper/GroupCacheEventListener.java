@@ -0,0 +1,72 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.keycloak.Config;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Drops the cached group values of a realm when one of its groups is edited, moved or created.
+ *
+ * Keycloak publishes no provider event for those changes, only an admin event, and only to the event listeners
+ * enabled on the realm. Add `split-group-cache` to the realm's Event Listeners to have the changes show at once
+ * instead of when the {@link UserAttributeSplitterMapper#GROUP_CACHE_TTL} is up.
+ *
+ * A subgroup takes the values of its ancestors, so the whole realm is dropped rather than the one group.
+ */
+public final class GroupCacheEventListener implements EventListenerProviderFactory, EventListenerProvider {
+
+	public static final String PROVIDER_ID = "split-group-cache";
+
+	private final GroupAttributeCache cache;
+
+	public GroupCacheEventListener() {
+		this(GroupAttributeCache.shared());
+	}
+
+	GroupCacheEventListener(final GroupAttributeCache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public void onEvent(final Event event) {
+		// user events never change a group.
+	}
+
+	@Override
+	public void onEvent(final AdminEvent event, final boolean includeRepresentation) {
+		if (event.getResourceType() == ResourceType.GROUP && event.getError() == null) {
+			cache.invalidateRealm(event.getRealmId());
+		}
+	}
+
+	@Override
+	public EventListenerProvider create(final KeycloakSession session) {
+		// stateless, so every session shares this one.
+		return this;
+	}
+
+	@Override
+	public void init(final Config.Scope config) {
+		// nothing to configure.
+	}
+
+	@Override
+	public void postInit(final KeycloakSessionFactory factory) {
+		// nothing to register, Keycloak calls the listeners enabled on the realm.
+	}
+
+	@Override
+	public void close() {
+		// the cache belongs to the mapper, which clears it.
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+}
@@ -0,0 +1,89 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with power of two buckets.
+ *
+ * Bucket `i` counts the durations from `2^i` up to `2^(i+1)` nanoseconds, so recording is one
+ * `numberOfLeadingZeros` and one {@link LongAdder} increment. Percentiles are accurate to the bucket,
+ * which is within a factor of two, and that is enough to see when a mapper gets slow.
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * 2^40 nanoseconds is about 18 minutes, anything slower goes in the last bucket.
+	 */
+	public static final int BUCKETS = 41;
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos The duration to record.
+	 */
+	public void record(final long nanos) {
+		counts[bucketOf(nanos)].increment();
+	}
+
+	static int bucketOf(final long nanos) {
+		if (nanos <= 0) {
+			return 0;
+		}
+		return Math.min(63 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+	}
+
+	/**
+	 * @return The number of durations in each bucket.
+	 */
+	public long[] getCounts() {
+		final long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts[i].sum();
+		}
+		return snapshot;
+	}
+
+	public long getCount() {
+		long total = 0;
+		for (LongAdder count : counts) {
+			total += count.sum();
+		}
+		return total;
+	}
+
+	/**
+	 * @param quantile The percentile wanted, between 0 and 1, EG: 0.99.
+	 * @return The upper bound in nanoseconds of the bucket the percentile falls in, or 0 if nothing was recorded.
+	 */
+	public long percentile(final double quantile) {
+		final long[] snapshot = getCounts();
+		long total = 0;
+		for (long count : snapshot) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return 1L << (i + 1);
+			}
+		}
+		return 1L << BUCKETS;
+	}
+
+	public void reset() {
+		for (LongAdder count : counts) {
+			count.reset();
+		}
+	}
+}
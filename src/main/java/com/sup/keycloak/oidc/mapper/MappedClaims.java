@@ -0,0 +1,60 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.keycloak.representations.IDToken;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The claims one run of a mapper produced, collected before they are put in a token.
+ *
+ * The access token, ID token and userinfo of one request all map the same user with the same plan, so
+ * {@link UserAttributeSplitterMapper} keeps this in the request's `KeycloakSession` and puts the same
+ * claims in each of them. The values are not changed once collected.
+ */
+final class MappedClaims {
+
+	private final SplitPlan plan;
+	private final List<ClaimWriter> writers = new ArrayList<ClaimWriter>(1);
+	private final List<Object> values = new ArrayList<Object>(1);
+
+	/**
+	 * @param plan The plan the claims come from.
+	 */
+	MappedClaims(final SplitPlan plan) {
+		this.plan = plan;
+	}
+
+	void add(final ClaimWriter writer, final Object value) {
+		writers.add(writer);
+		values.add(value);
+	}
+
+	/**
+	 * @return True if the claims come from the plan, or from one compiled from an equal configuration.
+	 */
+	boolean isMappedWith(final SplitPlan current) {
+		return plan.isCompiledFrom(current);
+	}
+
+	/**
+	 * Put the claims in a token.
+	 */
+	void applyTo(final IDToken token) {
+		for (int i = 0; i < values.size(); i++) {
+			writers.get(i).write(token, values.get(i));
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder result = new StringBuilder("{");
+		for (int i = 0; i < values.size(); i++) {
+			if (i > 0) {
+				result.append(", ");
+			}
+			result.append(writers.get(i)).append('=').append(values.get(i));
+		}
+		return result.append('}').toString();
+	}
+}
@@ -0,0 +1,157 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Splits the values of a very large attribute across cores.
+ *
+ * The work runs on a dedicated, bounded {@link ForkJoinPool}, never on the common pool, so a user with
+ * thousands of values cannot take every core away from Keycloak. Each value's result goes into the slot
+ * with the value's index, so the output order is the input order however the work was divided.
+ *
+ * With a {@link ClaimBudget} the values are split one round of chunks at a time, and no more rounds are
+ * submitted once the claim is full. Only a mapper's own claim is split here, the
+ * {@link UserAttributeSplitterMapper#FAN_OUT} claims are always split on the request thread.
+ */
+final class ParallelSplit {
+
+	/**
+	 * The system property that sets the number of threads in the pool.
+	 */
+	static final String PARALLELISM_PROPERTY = "com.sup.keycloak.oidc.mapper.parallelism";
+
+	static final int DEFAULT_MAX_PARALLELISM = 4;
+
+	/**
+	 * Fewer values than this are split by one thread, as handing them over would cost more than it saves.
+	 */
+	static final int MIN_CHUNK_SIZE = 128;
+
+	private ParallelSplit() {
+		// static methods only.
+	}
+
+	/**
+	 * The pool is only started the first time a mapper needs it.
+	 */
+	private static final class PoolHolder {
+		static final ForkJoinPool POOL = new ForkJoinPool(parallelism(), PoolHolder::newThread, null, false);
+
+		private static ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("user-attribute-splitter-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	static int parallelism() {
+		final int configured = Integer.getInteger(PARALLELISM_PROPERTY, 0);
+		if (configured > 0) {
+			return configured;
+		}
+		return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PARALLELISM));
+	}
+
+	static ForkJoinPool pool() {
+		return PoolHolder.POOL;
+	}
+
+	/**
+	 * @param size      The number of values.
+	 * @param threshold The configured threshold, 0 or less for never.
+	 * @return True if the values should be split in parallel.
+	 */
+	static boolean isParallel(final int size, final int threshold) {
+		return threshold > 0 && size >= threshold;
+	}
+
+	/**
+	 * Apply the split to every value, in parallel.
+	 *
+	 * @param values The values to split.
+	 * @param split  The split of one value, called from several threads at once. Returns `null` to leave the value out.
+	 * @param distinct If true only the first of equal results is kept.
+	 * @return The results that are not `null`, in the order of their values.
+	 */
+	static ArrayList<String> apply(final String[] values, final UnaryOperator<String> split, final boolean distinct) {
+		return apply(values, split, distinct, ClaimBudget.UNLIMITED, null);
+	}
+
+	/**
+	 * Apply the split to the values in parallel, until the results fill the budget.
+	 *
+	 * @param budget  The most the results may hold, values past it are not split.
+	 * @param metrics Records the truncation when the budget cuts the results short.
+	 * @return The results that are not `null` and fit the budget, in the order of their values.
+	 */
+	static ArrayList<String> apply(final String[] values, final UnaryOperator<String> split, final boolean distinct,
+			final ClaimBudget budget, final SplitMetrics metrics) {
+		final String[] results = new String[values.length];
+		final int chunkSize = Math.max(MIN_CHUNK_SIZE, values.length / (pool().getParallelism() * 4));
+		// without a budget every value is split, so they are all handed over at once.
+		final int round = budget == ClaimBudget.UNLIMITED ? values.length : chunkSize * pool().getParallelism();
+		final ArrayList<String> compacted = new ArrayList<String>(Math.min(results.length, budget.getMaxValues()));
+		// duplicates are dropped while the results are gathered, in the order of their values.
+		final CompactStringSet seen = distinct ? new CompactStringSet() : null;
+		long bytes = 0;
+		for (int from = 0; from < values.length; from += round) {
+			final int to = Math.min(values.length, from + round);
+			pool().invoke(new SplitTask(values, results, split, from, to, chunkSize));
+			for (int i = from; i < to; i++) {
+				final String result = results[i];
+				if (result == null || seen != null && !seen.add(result)) {
+					continue;
+				}
+				final long resultBytes = budget.bytesOf(result);
+				if (!budget.fits(compacted.size(), bytes, resultBytes)) {
+					// the claim is full, the rest of the values are not split.
+					metrics.recordTruncation();
+					return compacted;
+				}
+				bytes += resultBytes;
+				compacted.add(result);
+			}
+		}
+		return compacted;
+	}
+
+	private static final class SplitTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String[] values;
+		private final String[] results;
+		private final transient UnaryOperator<String> split;
+		private final int from;
+		private final int to;
+		private final int chunkSize;
+
+		SplitTask(final String[] values, final String[] results, final UnaryOperator<String> split,
+				final int from, final int to, final int chunkSize) {
+			this.values = values;
+			this.results = results;
+			this.split = split;
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunkSize) {
+				for (int i = from; i < to; i++) {
+					results[i] = split.apply(values[i]);
+				}
+				return;
+			}
+			final int middle = (from + to) >>> 1;
+			invokeAll(new SplitTask(values, results, split, from, middle, chunkSize),
+					new SplitTask(values, results, split, middle, to, chunkSize));
+		}
+	}
+}
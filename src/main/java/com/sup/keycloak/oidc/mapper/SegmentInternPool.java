@@ -0,0 +1,140 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, thread-safe pool of segments, so a segment seen before is returned as the instance seen before
+ * rather than cut out of the value again.
+ *
+ * After a split the same few strings, EG: a domain or a tenant prefix, come out of value after value. With
+ * {@link UserAttributeSplitterMapper#INTERN} on, a segment is looked up by its bounds in the attribute value,
+ * hashed and compared in place, so a hit costs no allocation at all.
+ *
+ * Each segment has one slot, picked by its hash. A new segment takes the slot from whatever was there, so
+ * the pool never grows and the segments in use keep their slots. Two threads racing for a slot only cost a miss.
+ */
+public final class SegmentInternPool {
+
+	public static final int DEFAULT_SIZE = 4096;
+
+	/**
+	 * Longer segments are rarely repeated, so they are cut out as usual.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 64;
+
+	private static final SegmentInternPool SHARED_POOL = new SegmentInternPool(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+
+	private final AtomicReferenceArray<String> slots;
+	private final int mask;
+	private final int maxLength;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param size      The number of slots, rounded up to a power of two.
+	 * @param maxLength The longest segment to pool.
+	 */
+	public SegmentInternPool(final int size, final int maxLength) {
+		if (size <= 0 || size > 1 << 30) {
+			throw new IllegalArgumentException("size must be from 1 to 2^30, was " + size);
+		}
+		final int slotCount = size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+		this.slots = new AtomicReferenceArray<String>(slotCount);
+		this.mask = slotCount - 1;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @return The pool shared by every mapper instance.
+	 */
+	public static SegmentInternPool shared() {
+		return SHARED_POOL;
+	}
+
+	/**
+	 * Return `value[start, end)`, the instance already in the pool if it has one.
+	 *
+	 * @param value The value the segment is in.
+	 * @param start The start of the segment.
+	 * @param end   The end of the segment, after its last character.
+	 * @return The segment.
+	 */
+	public String intern(final String value, final int start, final int end) {
+		final int length = end - start;
+		if (length > maxLength) {
+			return value.substring(start, end);
+		}
+		// the same hash as String.hashCode, which a pooled string has already worked out.
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + value.charAt(i);
+		}
+		final int slot = (hash ^ (hash >>> 16)) & mask;
+		final String pooled = slots.get(slot);
+		if (pooled != null && pooled.length() == length && pooled.hashCode() == hash
+				&& value.regionMatches(start, pooled, 0, length)) {
+			hits.increment();
+			return pooled;
+		}
+		misses.increment();
+		if (pooled != null) {
+			evictions.increment();
+		}
+		final String segment = start == 0 && end == value.length() ? value : value.substring(start, end);
+		slots.set(slot, segment);
+		return segment;
+	}
+
+	/**
+	 * @return The value, or the equal instance already in the pool.
+	 */
+	public String intern(final String value) {
+		return intern(value, 0, value.length());
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return The segments that took the slot of a different one.
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The share of lookups that found their segment in the pool, between 0 and 1.
+	 */
+	public double getHitRate() {
+		final long hitCount = hits.sum();
+		final long lookups = hitCount + misses.sum();
+		return lookups == 0 ? 0 : (double) hitCount / lookups;
+	}
+
+	public int getSize() {
+		return slots.length();
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Empty every slot and reset the counters.
+	 */
+	public void clear() {
+		for (int i = 0; i < slots.length(); i++) {
+			slots.set(i, null);
+		}
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+}
@@ -0,0 +1,27 @@
+package com.sup.keycloak.oidc.mapper;
+
+/**
+ * Thrown when a regular expression split token reads more characters than its budget allows,
+ * EG: a pattern like `(a+)+b` backtracking over a long value.
+ *
+ * The mapper treats the value as a missmatch. The exception carries no stack trace, so throwing it
+ * costs no more than the work it stops.
+ */
+public final class SplitBudgetExceededException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long budget;
+
+	public SplitBudgetExceededException(final long budget) {
+		super("Split token exceeded its regex step budget of " + budget, null, false, false);
+		this.budget = budget;
+	}
+
+	/**
+	 * @return The number of characters the match was allowed to read.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+}
@@ -0,0 +1,54 @@
+package com.sup.keycloak.oidc.mapper;
+
+/**
+ * One claim filled by a mapper: which segment of the split goes in it, and where it goes.
+ *
+ * Every mapper has the claim from its own `Token Claim Name`. {@link UserAttributeSplitterMapper#FAN_OUT}
+ * adds more, each with its own claim name and segment.
+ */
+public final class SplitClaim {
+
+	public static final String FIRST = "first";
+	public static final String FINAL = "final";
+
+	private final int segmentIndex;
+	private final ClaimWriter writer;
+
+	SplitClaim(final int segmentIndex, final ClaimWriter writer) {
+		this.segmentIndex = segmentIndex;
+		this.writer = writer;
+	}
+
+	/**
+	 * @return The segment that goes in the claim. 0 is the first, -1 the last.
+	 */
+	public int getSegmentIndex() {
+		return segmentIndex;
+	}
+
+	/**
+	 * Read the segment a claim wants: `first`, `final`, or a segment index such as `2` or `-2`.
+	 *
+	 * @return The segment index, or `null` if the selection is not one of those.
+	 */
+	static Integer segmentIndexOf(final String selection) {
+		if (FIRST.equalsIgnoreCase(selection)) {
+			return Splitter.FIRST_SEGMENT;
+		}
+		if (FINAL.equalsIgnoreCase(selection)) {
+			return Splitter.FINAL_SEGMENT;
+		}
+		try {
+			return Integer.valueOf(selection);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The writer that puts the claim in a token, compiled with the plan.
+	 */
+	ClaimWriter getWriter() {
+		return writer;
+	}
+}
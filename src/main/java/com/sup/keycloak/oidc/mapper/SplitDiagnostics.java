@@ -0,0 +1,63 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which tokens a mapper logs when an operator turns on {@link UserAttributeSplitterMapper#DIAGNOSTICS}.
+ *
+ * One token in every `sampleEvery` is logged at INFO. When it is off, {@link #sample()} returns false
+ * without touching any shared state, so normal token issuance does no logging work at all.
+ */
+public final class SplitDiagnostics {
+
+	/**
+	 * Diagnostics turned off, the default for every mapper.
+	 */
+	public static final SplitDiagnostics OFF = new SplitDiagnostics(0);
+
+	private final long sampleEvery;
+	private final AtomicLong calls = new AtomicLong();
+
+	SplitDiagnostics(final long sampleEvery) {
+		this.sampleEvery = sampleEvery;
+	}
+
+	/**
+	 * Read the sample rate from the mapper configuration.
+	 *
+	 * @param configValue The number of tokens per logged token. Empty, 0 or anything that is not a number turns it off.
+	 * @return The diagnostics for the mapper.
+	 */
+	static SplitDiagnostics fromConfig(final String configValue) {
+		if (configValue == null || configValue.trim().isEmpty()) {
+			return OFF;
+		}
+		try {
+			final long sampleEvery = Long.parseLong(configValue.trim());
+			return sampleEvery <= 0 ? OFF : new SplitDiagnostics(sampleEvery);
+		} catch (NumberFormatException ex) {
+			return OFF;
+		}
+	}
+
+	/**
+	 * @return True if the current token should be logged.
+	 */
+	public boolean sample() {
+		if (sampleEvery <= 0) {
+			return false;
+		}
+		return sampleEvery == 1 || calls.incrementAndGet() % sampleEvery == 0;
+	}
+
+	public boolean isEnabled() {
+		return sampleEvery > 0;
+	}
+
+	/**
+	 * @return The number of tokens per logged token, or 0 when diagnostics are off.
+	 */
+	public long getSampleEvery() {
+		return sampleEvery;
+	}
+}
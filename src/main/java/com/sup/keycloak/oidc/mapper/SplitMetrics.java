@@ -0,0 +1,184 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one mapper, kept by {@link SplitMetricsRegistry} under the mapper id.
+ *
+ * Every counter is a {@link LongAdder}, so the token issuing threads never contend on a lock or a
+ * single cache line while they record.
+ */
+public final class SplitMetrics implements SplitMetricsMBean {
+
+	private final String mapperId;
+	private final LongAdder invocations = new LongAdder();
+	private final LongAdder valuesProcessed = new LongAdder();
+	private final LongAdder splitHits = new LongAdder();
+	private final LongAdder missmatches = new LongAdder();
+	private final LongAdder missmatchesSkipped = new LongAdder();
+	private final LongAdder patternFallbacks = new LongAdder();
+	private final LongAdder missingAttributes = new LongAdder();
+	private final LongAdder budgetExceeded = new LongAdder();
+	private final LongAdder truncations = new LongAdder();
+	private final LongAdder requestReuses = new LongAdder();
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	public SplitMetrics(final String mapperId) {
+		this.mapperId = mapperId;
+	}
+
+	void recordInvocation(final long nanos) {
+		invocations.increment();
+		latency.record(nanos);
+	}
+
+	void recordValue() {
+		valuesProcessed.increment();
+	}
+
+	void recordSplitHit() {
+		splitHits.increment();
+	}
+
+	/**
+	 * @param skipped True if the value was left out of the claim, false if it went in whole.
+	 */
+	void recordMissmatch(final boolean skipped) {
+		missmatches.increment();
+		if (skipped) {
+			missmatchesSkipped.increment();
+		}
+	}
+
+	/**
+	 * A value was treated as a missmatch because the split token is not a valid regular expression.
+	 */
+	void recordPatternFallback() {
+		patternFallbacks.increment();
+	}
+
+	/**
+	 * A value was treated as a missmatch because the split token ran out of its regex step budget.
+	 */
+	void recordBudgetExceeded() {
+		budgetExceeded.increment();
+	}
+
+	/**
+	 * A claim was cut short by its {@link ClaimBudget}.
+	 */
+	void recordTruncation() {
+		truncations.increment();
+	}
+
+	/**
+	 * A token reused the claims an earlier token of the same request mapped.
+	 */
+	void recordRequestReuse() {
+		requestReuses.increment();
+	}
+
+	void recordMissingAttribute() {
+		missingAttributes.increment();
+	}
+
+	@Override
+	public String getMapperId() {
+		return mapperId;
+	}
+
+	@Override
+	public long getInvocations() {
+		return invocations.sum();
+	}
+
+	@Override
+	public long getValuesProcessed() {
+		return valuesProcessed.sum();
+	}
+
+	@Override
+	public long getSplitHits() {
+		return splitHits.sum();
+	}
+
+	@Override
+	public long getMissmatches() {
+		return missmatches.sum();
+	}
+
+	@Override
+	public long getMissmatchesSkipped() {
+		return missmatchesSkipped.sum();
+	}
+
+	@Override
+	public double getMissmatchRate() {
+		final long values = valuesProcessed.sum();
+		return values == 0 ? 0d : (double) missmatches.sum() / values;
+	}
+
+	@Override
+	public long getPatternFallbacks() {
+		return patternFallbacks.sum();
+	}
+
+	@Override
+	public long getMissingAttributes() {
+		return missingAttributes.sum();
+	}
+
+	@Override
+	public long getBudgetExceeded() {
+		return budgetExceeded.sum();
+	}
+
+	@Override
+	public long getTruncations() {
+		return truncations.sum();
+	}
+
+	@Override
+	public long getRequestReuses() {
+		return requestReuses.sum();
+	}
+
+	@Override
+	public long getLatencyP50Nanos() {
+		return latency.percentile(0.5);
+	}
+
+	@Override
+	public long getLatencyP99Nanos() {
+		return latency.percentile(0.99);
+	}
+
+	@Override
+	public long getLatencyP999Nanos() {
+		return latency.percentile(0.999);
+	}
+
+	@Override
+	public long[] getLatencyBuckets() {
+		return latency.getCounts();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	@Override
+	public void reset() {
+		invocations.reset();
+		valuesProcessed.reset();
+		splitHits.reset();
+		missmatches.reset();
+		missmatchesSkipped.reset();
+		patternFallbacks.reset();
+		missingAttributes.reset();
+		budgetExceeded.reset();
+		truncations.reset();
+		requestReuses.reset();
+		latency.reset();
+	}
+}
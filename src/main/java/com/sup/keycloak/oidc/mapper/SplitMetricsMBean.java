@@ -0,0 +1,53 @@
+package com.sup.keycloak.oidc.mapper;
+
+/**
+ * The JMX view of one mapper's {@link SplitMetrics}, registered by {@link SplitMetricsRegistry}.
+ */
+public interface SplitMetricsMBean {
+
+	String getMapperId();
+
+	long getInvocations();
+
+	long getValuesProcessed();
+
+	long getSplitHits();
+
+	long getMissmatches();
+
+	long getMissmatchesSkipped();
+
+	/**
+	 * @return The share of values that did not contain the split token, between 0 and 1.
+	 */
+	double getMissmatchRate();
+
+	long getPatternFallbacks();
+
+	long getMissingAttributes();
+
+	/**
+	 * @return The values treated as a missmatch because the split token ran out of its regex step budget.
+	 */
+	long getBudgetExceeded();
+
+	/**
+	 * @return The claims cut short by the mapper's Max Values or Max Bytes.
+	 */
+	long getTruncations();
+
+	/**
+	 * @return The tokens that reused the claims of an earlier token in the same request, rather than splitting again.
+	 */
+	long getRequestReuses();
+
+	long getLatencyP50Nanos();
+
+	long getLatencyP99Nanos();
+
+	long getLatencyP999Nanos();
+
+	long[] getLatencyBuckets();
+
+	void reset();
+}
@@ -0,0 +1,139 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.jboss.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the {@link SplitMetrics} of each mapper, keyed by the mapper id, and publishes each one as
+ * a JMX MBean named `com.sup.keycloak.oidc.mapper:type=SplitMetrics,mapper=<mapper id>`.
+ *
+ * The metrics outlive the mapper's {@link SplitPlan}, so editing a mapper or evicting its plan does not reset
+ * them. They are removed when {@link SplitPlanCache} invalidates the mapper, and every MBean is unregistered when
+ * the mapper factory is closed, so a redeploy does not leave MBeans bound to the old classloader.
+ */
+public final class SplitMetricsRegistry {
+
+	private static final Logger LOGGER = Logger.getLogger(SplitMetricsRegistry.class);
+
+	public static final String JMX_DOMAIN = "com.sup.keycloak.oidc.mapper";
+
+	// Mappers that are not saved yet have no id.
+	private static final String UNSAVED_MAPPER_ID = "";
+
+	private static final SplitMetricsRegistry SHARED_REGISTRY = new SplitMetricsRegistry(true);
+
+	private final boolean registerMBeans;
+	private final ConcurrentHashMap<String, SplitMetrics> metrics = new ConcurrentHashMap<String, SplitMetrics>();
+
+	/**
+	 * @param registerMBeans If true each mapper's metrics are registered with the platform MBean server.
+	 */
+	public SplitMetricsRegistry(final boolean registerMBeans) {
+		this.registerMBeans = registerMBeans;
+	}
+
+	/**
+	 * @return The registry shared by every mapper instance.
+	 */
+	public static SplitMetricsRegistry shared() {
+		return SHARED_REGISTRY;
+	}
+
+	/**
+	 * Return the metrics of a mapper, creating and registering them on first use.
+	 *
+	 * @param mapperId The mapper id, or `null` for a mapper that is not saved yet.
+	 * @return The metrics of the mapper.
+	 */
+	public SplitMetrics forMapper(final String mapperId) {
+		final String key = mapperId == null ? UNSAVED_MAPPER_ID : mapperId;
+		final SplitMetrics existing = metrics.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		final SplitMetrics created = new SplitMetrics(key);
+		final SplitMetrics raced = metrics.putIfAbsent(key, created);
+		if (raced != null) {
+			return raced;
+		}
+		if (registerMBeans) {
+			register(created);
+		}
+		return created;
+	}
+
+	/**
+	 * @return The metrics of the mapper, or `null` if it has not mapped a token yet.
+	 */
+	public SplitMetrics get(final String mapperId) {
+		return metrics.get(mapperId == null ? UNSAVED_MAPPER_ID : mapperId);
+	}
+
+	/**
+	 * @return The metrics of every mapper that has mapped a token.
+	 */
+	public List<SplitMetrics> getAll() {
+		return new ArrayList<SplitMetrics>(metrics.values());
+	}
+
+	/**
+	 * Forget the metrics of a mapper and unregister its MBean.
+	 *
+	 * @param mapperId The mapper id.
+	 */
+	public void remove(final String mapperId) {
+		final SplitMetrics removed = metrics.remove(mapperId == null ? UNSAVED_MAPPER_ID : mapperId);
+		if (removed != null && registerMBeans) {
+			unregister(removed);
+		}
+	}
+
+	/**
+	 * Forget the metrics of every mapper and unregister their MBeans.
+	 */
+	public void close() {
+		for (String mapperId : new ArrayList<String>(metrics.keySet())) {
+			remove(mapperId);
+		}
+	}
+
+	static ObjectName objectNameOf(final String mapperId) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=SplitMetrics,mapper=" + ObjectName.quote(mapperId));
+	}
+
+	private static void register(final SplitMetrics splitMetrics) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = objectNameOf(splitMetrics.getMapperId());
+			if (server.isRegistered(name)) {
+				// left by an earlier deployment, which would keep showing its own counts.
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(splitMetrics, name);
+		} catch (JMException | SecurityException ex) {
+			// the metrics still count, they just cannot be read over JMX.
+			LOGGER.warnf("[SplitMetricsRegistry] - Cannot register metrics MBean. mapperId=%s error=%s",
+					splitMetrics.getMapperId(), ex.getMessage());
+		}
+	}
+
+	private static void unregister(final SplitMetrics splitMetrics) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = objectNameOf(splitMetrics.getMapperId());
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException | SecurityException ex) {
+			LOGGER.warnf("[SplitMetricsRegistry] - Cannot unregister metrics MBean. mapperId=%s error=%s",
+					splitMetrics.getMapperId(), ex.getMessage());
+		}
+	}
+}
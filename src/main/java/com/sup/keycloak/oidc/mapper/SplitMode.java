@@ -0,0 +1,74 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How the split token is interpreted.
+ */
+public enum SplitMode {
+
+	/**
+	 * The split token is matched as a plain string. Characters such as `|` and `.` have no special meaning.
+	 */
+	LITERAL("literal"),
+
+	/**
+	 * The split token is a set of single characters, and the value is split on any one of them. EG: `@;|`
+	 * splits on `@`, `;` or `|`, the same as the regular expression `[@;|]` but without the regex engine.
+	 */
+	CHARACTER_SET("character-set"),
+
+	/**
+	 * The split token is a java regular expression. This is the original behaviour, so it is the default.
+	 */
+	REGEX("regex"),
+
+	/**
+	 * The split token is a java regular expression, and one of its groups is put in the claim rather than a
+	 * segment. EG: `^CN=([^,]+)` takes the common name from a distinguished name. The pattern is found once
+	 * per value, and a value it is not found in is a missmatch. See {@link UserAttributeSplitterMapper#EXTRACT_GROUP}.
+	 */
+	EXTRACT("extract");
+
+	private final String configValue;
+
+	SplitMode(final String configValue) {
+		this.configValue = configValue;
+	}
+
+	/**
+	 * @return The value stored in the mapper configuration.
+	 */
+	public String getConfigValue() {
+		return configValue;
+	}
+
+	/**
+	 * Resolve the mode from a mapper configuration value.
+	 *
+	 * @param configValue The configured value, may be null.
+	 * @return The matching mode, or {@link #REGEX} when nothing (or something unknown) is configured.
+	 */
+	public static SplitMode fromConfig(final String configValue) {
+		if (configValue != null) {
+			for (SplitMode mode : values()) {
+				if (mode.configValue.equalsIgnoreCase(configValue.trim())) {
+					return mode;
+				}
+			}
+		}
+		return REGEX;
+	}
+
+	/**
+	 * @return The config values of every mode, for the admin console drop down.
+	 */
+	public static List<String> configValues() {
+		List<String> options = new ArrayList<String>();
+		for (SplitMode mode : values()) {
+			options.add(mode.configValue);
+		}
+		return options;
+	}
+}
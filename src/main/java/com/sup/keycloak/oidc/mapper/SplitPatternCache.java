@@ -0,0 +1,194 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A bounded, thread-safe cache of compiled split patterns, keyed by the split token.
+ *
+ * `String.split` compiles its argument into a new {@link Pattern} on every call (unless it is a
+ * single plain character), so the mapper looks the pattern up here instead. When the cache is
+ * full the oldest entry is evicted.
+ *
+ * A split token that does not compile is remembered too, so a mapper saved with a bad pattern before
+ * it was validated only pays for the compile failure, and its warning, once. Failures are bounded and
+ * evicted oldest first, the same as the patterns.
+ *
+ * Values a split token gave up on at its regex step budget outside of a mapper, which has its own
+ * {@link SplitMetrics}, are counted here as well, and warned about once per split token.
+ */
+public final class SplitPatternCache {
+
+	private static final Logger LOGGER = Logger.getLogger(SplitPatternCache.class);
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	private static final SplitPatternCache SHARED_CACHE = new SplitPatternCache(DEFAULT_MAX_SIZE);
+
+	private final int maxSize;
+	private final ConcurrentHashMap<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+	private final ConcurrentLinkedQueue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+	private final ConcurrentHashMap<String, PatternSyntaxException> failures = new ConcurrentHashMap<String, PatternSyntaxException>();
+	private final ConcurrentLinkedQueue<String> failureOrder = new ConcurrentLinkedQueue<String>();
+	private final ConcurrentHashMap<String, Boolean> budgetWarnings = new ConcurrentHashMap<String, Boolean>();
+	private final ConcurrentLinkedQueue<String> budgetWarningOrder = new ConcurrentLinkedQueue<String>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder budgetExceeded = new LongAdder();
+
+	public SplitPatternCache(final int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return The cache shared by every mapper instance.
+	 */
+	public static SplitPatternCache shared() {
+		return SHARED_CACHE;
+	}
+
+	/**
+	 * Return the compiled pattern for the split token, compiling and caching it on first use.
+	 *
+	 * @param splitToken The regular expression to compile.
+	 * @return The compiled pattern.
+	 * @throws PatternSyntaxException If the split token is not a valid regular expression. After the first
+	 *                                failure the same exception is thrown again without compiling.
+	 */
+	public Pattern get(final String splitToken) {
+		final Pattern cached = patterns.get(splitToken);
+		if (cached != null) {
+			hits.increment();
+			return cached;
+		}
+		final PatternSyntaxException failure = failures.get(splitToken);
+		if (failure != null) {
+			hits.increment();
+			throw failure;
+		}
+		misses.increment();
+		final Pattern compiled;
+		try {
+			compiled = Pattern.compile(splitToken);
+		} catch (PatternSyntaxException ex) {
+			rememberFailure(splitToken, ex);
+			throw ex;
+		}
+		final Pattern existing = patterns.putIfAbsent(splitToken, compiled);
+		if (existing != null) {
+			// another thread compiled it first.
+			return existing;
+		}
+		insertionOrder.add(splitToken);
+		evictIfFull();
+		return compiled;
+	}
+
+	private void rememberFailure(final String splitToken, final PatternSyntaxException ex) {
+		if (failures.putIfAbsent(splitToken, ex) == null) {
+			failureOrder.add(splitToken);
+			evictEldest(failures, failureOrder, maxSize);
+			LOGGER.warnf("[SplitPatternCache] - Split Token Cannot Compile in OIDC Mapper. splitToken=%s error=%s",
+					splitToken, ex.getDescription());
+		}
+	}
+
+	/**
+	 * Count a value the split token gave up on at its regex step budget, logging a warning the first time.
+	 */
+	public void recordBudgetExceeded(final String splitToken) {
+		budgetExceeded.increment();
+		if (budgetWarnings.putIfAbsent(splitToken, Boolean.TRUE) == null) {
+			budgetWarningOrder.add(splitToken);
+			evictEldest(budgetWarnings, budgetWarningOrder, maxSize);
+			LOGGER.warnf("[SplitPatternCache] - Split Token exceeded its regex step budget, only logged once. splitToken=%s",
+					splitToken);
+		}
+	}
+
+	private void evictIfFull() {
+		evictions.add(evictEldest(patterns, insertionOrder, maxSize));
+	}
+
+	/**
+	 * Remove the oldest split tokens until the map holds no more than maxSize.
+	 *
+	 * @return The number of entries removed.
+	 */
+	private static int evictEldest(final ConcurrentHashMap<String, ?> map, final ConcurrentLinkedQueue<String> order,
+			final int maxSize) {
+		int evicted = 0;
+		while (map.size() > maxSize) {
+			final String eldest = order.poll();
+			if (eldest == null) {
+				break;
+			}
+			if (map.remove(eldest) != null) {
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The values split tokens gave up on at their regex step budget, outside of a mapper.
+	 */
+	public long getBudgetExceeded() {
+		return budgetExceeded.sum();
+	}
+
+	/**
+	 * @return The number of cached patterns, not counting remembered failures.
+	 */
+	public int size() {
+		return patterns.size();
+	}
+
+	/**
+	 * @return The number of split tokens remembered as not compiling.
+	 */
+	public int failureCount() {
+		return failures.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Remove every cached pattern and reset the counters.
+	 */
+	public void clear() {
+		patterns.clear();
+		insertionOrder.clear();
+		failures.clear();
+		failureOrder.clear();
+		budgetWarnings.clear();
+		budgetWarningOrder.clear();
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+		budgetExceeded.reset();
+	}
+}
@@ -0,0 +1,432 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.Constants;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapperUtils;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The configuration of one mapper, parsed once and compiled into the fields `setClaim` needs.
+ *
+ * A plan is immutable and keeps a copy of the configuration it was compiled from. When an admin edits the
+ * mapper the configuration no longer equals that copy and {@link SplitPlanCache} builds a new plan.
+ */
+public final class SplitPlan {
+
+	private static final Logger LOGGER = Logger.getLogger(SplitPlan.class);
+
+	private final int fingerprint;
+	// a copy, so an edit made in place to the mapper's own map is still seen as a change.
+	private final Map<String, String> config;
+	private final String attributeName;
+	private final boolean aggregateAttrs;
+	private final long groupCacheTtlNanos;
+	private final String splitToken;
+	private final SplitMode splitMode;
+	private final Splitter splitter;
+	private final int segmentIndex;
+	private final boolean skipMissmatch;
+	private final long regexBudget;
+	private final int parallelThreshold;
+	private final boolean distinct;
+	private final ClaimBudget claimBudget;
+	private final ValueTransform transform;
+	private final boolean multivalued;
+	private final List<SplitClaim> claims;
+	private final SplitDiagnostics diagnostics;
+	private final SplitMetrics metrics;
+	private final int[] claimSegmentIndexes;
+
+	@SuppressWarnings("PMD.NullAssignment")
+	private SplitPlan(final ProtocolMapperModel mappingModel, final int fingerprint, final Map<String, String> config,
+			final SplitMetrics metrics) {
+		this.fingerprint = fingerprint;
+		this.config = Collections.unmodifiableMap(new HashMap<String, String>(config));
+		this.attributeName = config.get(ProtocolMapperUtils.USER_ATTRIBUTE);
+		this.aggregateAttrs = Boolean.parseBoolean(config.get(ProtocolMapperUtils.AGGREGATE_ATTRS));
+		this.groupCacheTtlNanos = groupCacheTtlOf(config.get(UserAttributeSplitterMapper.GROUP_CACHE_TTL));
+		final String token = config.get(UserAttributeSplitterMapper.SPLIT_TOKEN);
+		this.splitToken = token == null || token.isEmpty() ? null : token;
+		this.splitMode = SplitMode.fromConfig(config.get(UserAttributeSplitterMapper.SPLIT_MODE));
+		this.regexBudget = regexBudgetOf(config.get(UserAttributeSplitterMapper.REGEX_BUDGET));
+		this.splitter = splitToken == null
+				? null
+				: compileSplitter(splitToken, splitMode, regexBudget, config.get(UserAttributeSplitterMapper.EXTRACT_GROUP));
+		this.segmentIndex = segmentIndexOf(config.get(UserAttributeSplitterMapper.SEGMENT_INDEX),
+				Boolean.parseBoolean(config.get(UserAttributeSplitterMapper.FINAL_VALUE)));
+		this.skipMissmatch = Boolean.parseBoolean(config.get(UserAttributeSplitterMapper.SKIP_MISSMATCH));
+		this.distinct = Boolean.parseBoolean(config.get(UserAttributeSplitterMapper.DISTINCT));
+		final ValueTransform transforms = ValueTransform.fromConfig(config.get(UserAttributeSplitterMapper.TRANSFORMS));
+		this.transform = Boolean.parseBoolean(config.get(UserAttributeSplitterMapper.INTERN))
+				? transforms.interning(SegmentInternPool.shared())
+				: transforms;
+		this.claimBudget = ClaimBudget.of(
+				(int) limitOf(config.get(UserAttributeSplitterMapper.MAX_VALUES), UserAttributeSplitterMapper.MAX_VALUES_LABEL),
+				limitOf(config.get(UserAttributeSplitterMapper.MAX_BYTES), UserAttributeSplitterMapper.MAX_BYTES_LABEL));
+		this.parallelThreshold = parallelThresholdOf(config.get(UserAttributeSplitterMapper.PARALLEL_THRESHOLD));
+		this.multivalued = Boolean.parseBoolean(config.get(UserAttributeSplitterMapper.MULTIVALUED))
+				|| Boolean.parseBoolean(config.get(ProtocolMapperUtils.MULTIVALUED));
+		this.claims = claimsOf(mappingModel, config, segmentIndex, multivalued, claimModelOf(mappingModel, config, multivalued));
+		this.claimSegmentIndexes = new int[claims.size()];
+		for (int i = 0; i < claimSegmentIndexes.length; i++) {
+			claimSegmentIndexes[i] = claims.get(i).getSegmentIndex();
+		}
+		this.diagnostics = SplitDiagnostics.fromConfig(config.get(UserAttributeSplitterMapper.DIAGNOSTICS));
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Compile the configuration of a mapper.
+	 *
+	 * @param mappingModel The mapper to compile.
+	 * @return The compiled plan.
+	 */
+	public static SplitPlan compile(final ProtocolMapperModel mappingModel) {
+		final Map<String, String> config = configOf(mappingModel);
+		return compile(mappingModel, config, fingerprintOf(config));
+	}
+
+	static SplitPlan compile(final ProtocolMapperModel mappingModel, final Map<String, String> config, final int fingerprint) {
+		return new SplitPlan(mappingModel, fingerprint, config, SplitMetricsRegistry.shared().forMapper(mappingModel.getId()));
+	}
+
+	/**
+	 * Compile the configuration of a mapper with metrics of its own, which are not registered with the shared
+	 * {@link SplitMetricsRegistry} or as an MBean, EG: to evaluate a config outside of Keycloak.
+	 *
+	 * @param mappingModel The mapper to compile.
+	 * @param metrics      The metrics the plan records to.
+	 * @return The compiled plan.
+	 */
+	static SplitPlan compile(final ProtocolMapperModel mappingModel, final SplitMetrics metrics) {
+		final Map<String, String> config = configOf(mappingModel);
+		return new SplitPlan(mappingModel, fingerprintOf(config), config, metrics);
+	}
+
+	static Map<String, String> configOf(final ProtocolMapperModel mappingModel) {
+		final Map<String, String> config = mappingModel.getConfig();
+		return config == null ? Collections.<String, String>emptyMap() : config;
+	}
+
+	/**
+	 * @return A quick first check that a configuration is unchanged. Different configurations can share a
+	 *         fingerprint, so a match is confirmed with {@link #isCompiledFrom(int, Map)}.
+	 */
+	static int fingerprintOf(final Map<String, String> config) {
+		return config.hashCode();
+	}
+
+	/**
+	 * Compile the split token, or return `null` if it is not a valid regular expression or does not have the
+	 * extract group.
+	 */
+	private static Splitter compileSplitter(final String splitToken, final SplitMode splitMode, final long regexBudget,
+			final String extractGroup) {
+		try {
+			return Splitter.compile(splitToken, splitMode, regexBudget, extractGroup);
+		} catch (java.util.regex.PatternSyntaxException ex) {
+			// every value will be treated as a missmatch, the same as splitValue does.
+			// SplitPatternCache has already logged the failure, once for the pattern.
+			return null;
+		} catch (IllegalArgumentException ex) {
+			LOGGER.warnf("[SplitPlan] - Extract Group is not valid, every value is a missmatch. %s", ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Read {@link UserAttributeSplitterMapper#REGEX_BUDGET}, 0 or less turns the budget off.
+	 */
+	private static long regexBudgetOf(final String configValue) {
+		if (configValue == null || configValue.trim().isEmpty()) {
+			return Splitter.DEFAULT_REGEX_BUDGET;
+		}
+		try {
+			return Math.max(0L, Long.parseLong(configValue.trim()));
+		} catch (NumberFormatException ex) {
+			LOGGER.warnf("[SplitPlan] - Regex Step Budget is not a number, using the default. regexBudget=%s", configValue);
+			return Splitter.DEFAULT_REGEX_BUDGET;
+		}
+	}
+
+	/**
+	 * Read a limit of the {@link ClaimBudget}, 0 means no limit.
+	 */
+	private static long limitOf(final String configValue, final String label) {
+		if (configValue == null || configValue.trim().isEmpty()) {
+			return 0;
+		}
+		try {
+			return Math.min(Integer.MAX_VALUE, Math.max(0L, Long.parseLong(configValue.trim())));
+		} catch (NumberFormatException ex) {
+			LOGGER.warnf("[SplitPlan] - %s is not a number, the claim is not limited. value=%s", label, configValue);
+			return 0;
+		}
+	}
+
+	/**
+	 * Read {@link UserAttributeSplitterMapper#PARALLEL_THRESHOLD}, 0 means never split in parallel.
+	 */
+	private static int parallelThresholdOf(final String configValue) {
+		if (configValue == null || configValue.trim().isEmpty()) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Integer.parseInt(configValue.trim()));
+		} catch (NumberFormatException ex) {
+			LOGGER.warnf("[SplitPlan] - Parallel Threshold is not a number, splitting on the request thread. parallelThreshold=%s", configValue);
+			return 0;
+		}
+	}
+
+	/**
+	 * Read {@link UserAttributeSplitterMapper#GROUP_CACHE_TTL} in seconds, 0 means group values are not cached.
+	 */
+	private static long groupCacheTtlOf(final String configValue) {
+		if (configValue == null || configValue.trim().isEmpty()) {
+			return 0;
+		}
+		try {
+			return TimeUnit.SECONDS.toNanos(Math.max(0L, Long.parseLong(configValue.trim())));
+		} catch (NumberFormatException ex) {
+			LOGGER.warnf("[SplitPlan] - Group Attribute Cache TTL is not a number, group values are not cached. groupCacheTtl=%s", configValue);
+			return 0;
+		}
+	}
+
+	/**
+	 * {@link UserAttributeSplitterMapper#SEGMENT_INDEX} wins over {@link UserAttributeSplitterMapper#FINAL_VALUE}
+	 * when it is set.
+	 */
+	private static int segmentIndexOf(final String configValue, final boolean finalValue) {
+		final int fallback = finalValue ? Splitter.FINAL_SEGMENT : Splitter.FIRST_SEGMENT;
+		if (configValue == null || configValue.trim().isEmpty()) {
+			return fallback;
+		}
+		try {
+			return Integer.parseInt(configValue.trim());
+		} catch (NumberFormatException ex) {
+			LOGGER.warnf("[SplitPlan] - Segment Index is not a number, using Final Value instead. segmentIndex=%s", configValue);
+			return fallback;
+		}
+	}
+
+	/**
+	 * `OIDCAttributeMapperHelper.mapClaim` only keeps every value when the keycloak `multivalued` option
+	 * is set. If the mapper is only multivalued through {@link UserAttributeSplitterMapper#MULTIVALUED},
+	 * the claim is mapped with a copy of the mapper that has the keycloak option set as well.
+	 */
+	private static ProtocolMapperModel claimModelOf(final ProtocolMapperModel mappingModel,
+			final Map<String, String> config, final boolean multivalued) {
+		if (!multivalued || Boolean.parseBoolean(config.get(ProtocolMapperUtils.MULTIVALUED))) {
+			return null;
+		}
+		final ProtocolMapperModel copy = copyOf(mappingModel, config);
+		copy.getConfig().put(ProtocolMapperUtils.MULTIVALUED, Boolean.TRUE.toString());
+		return copy;
+	}
+
+	/**
+	 * The mapper's own claim comes first, followed by any from {@link UserAttributeSplitterMapper#FAN_OUT}.
+	 */
+	private static List<SplitClaim> claimsOf(final ProtocolMapperModel mappingModel, final Map<String, String> config,
+			final int segmentIndex, final boolean multivalued, final ProtocolMapperModel claimModel) {
+		final List<SplitClaim> claims = new ArrayList<SplitClaim>();
+		final ProtocolMapperModel ownModel = claimModel == null ? mappingModel : claimModel;
+		claims.add(new SplitClaim(segmentIndex, new ClaimWriter(ownModel, claimModel == null ? config : claimModel.getConfig())));
+		final String fanOut = config.get(UserAttributeSplitterMapper.FAN_OUT);
+		if (fanOut == null || fanOut.trim().isEmpty()) {
+			return Collections.unmodifiableList(claims);
+		}
+		for (String entry : fanOut.split(Constants.CFG_DELIMITER)) {
+			final String trimmed = entry.trim();
+			if (trimmed.isEmpty()) {
+				continue;
+			}
+			final int separator = trimmed.lastIndexOf('=');
+			final String claimName = separator < 0 ? "" : trimmed.substring(0, separator).trim();
+			final String selection = separator < 0 ? "" : trimmed.substring(separator + 1).trim();
+			final Integer claimSegmentIndex = SplitClaim.segmentIndexOf(selection);
+			if (claimName.isEmpty() || claimSegmentIndex == null) {
+				LOGGER.warnf("[SplitPlan] - Ignoring fan out claim, expected claim.name=first, claim.name=final or claim.name=<index>. entry=%s", trimmed);
+				continue;
+			}
+			final ProtocolMapperModel copy = copyOf(mappingModel, config);
+			copy.getConfig().put(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, claimName);
+			if (multivalued) {
+				copy.getConfig().put(ProtocolMapperUtils.MULTIVALUED, Boolean.TRUE.toString());
+			}
+			claims.add(new SplitClaim(claimSegmentIndex, new ClaimWriter(copy, copy.getConfig())));
+		}
+		return Collections.unmodifiableList(claims);
+	}
+
+	private static ProtocolMapperModel copyOf(final ProtocolMapperModel mappingModel, final Map<String, String> config) {
+		final ProtocolMapperModel copy = new ProtocolMapperModel();
+		copy.setId(mappingModel.getId());
+		copy.setName(mappingModel.getName());
+		copy.setProtocol(mappingModel.getProtocol());
+		copy.setProtocolMapper(mappingModel.getProtocolMapper());
+		copy.setConfig(new HashMap<String, String>(config));
+		return copy;
+	}
+
+	int getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @param fingerprint The fingerprint of the configuration, from {@link #fingerprintOf(Map)}.
+	 * @param config      The configuration.
+	 * @return True if this plan was compiled from an equal configuration.
+	 */
+	boolean isCompiledFrom(final int fingerprint, final Map<String, String> config) {
+		return this.fingerprint == fingerprint && this.config.equals(config);
+	}
+
+	/**
+	 * @return True if the other plan is this one, or was compiled from an equal configuration.
+	 */
+	@SuppressWarnings("PMD.CompareObjectsWithEquals")
+	boolean isCompiledFrom(final SplitPlan other) {
+		return this == other || isCompiledFrom(other.fingerprint, other.config);
+	}
+
+	public String getAttributeName() {
+		return attributeName;
+	}
+
+	public boolean isAggregateAttrs() {
+		return aggregateAttrs;
+	}
+
+	/**
+	 * @return True if aggregated group values are read from {@link GroupAttributeCache}.
+	 */
+	public boolean isGroupCached() {
+		return aggregateAttrs && groupCacheTtlNanos > 0;
+	}
+
+	public long getGroupCacheTtlNanos() {
+		return groupCacheTtlNanos;
+	}
+
+	/**
+	 * @return The split token, or `null` if none is configured.
+	 */
+	public String getSplitToken() {
+		return splitToken;
+	}
+
+	public SplitMode getSplitMode() {
+		return splitMode;
+	}
+
+	/**
+	 * @return The compiled split token, or `null` if there is no split token or it does not compile.
+	 */
+	public Splitter getSplitter() {
+		return splitter;
+	}
+
+	public boolean hasSplitToken() {
+		return splitToken != null;
+	}
+
+	/**
+	 * @return The segment that goes in the mapper's own claim. 0 is the first, -1 the last.
+	 */
+	public int getSegmentIndex() {
+		return segmentIndex;
+	}
+
+	/**
+	 * @return The number of characters a regular expression may read from one value, 0 for no limit.
+	 */
+	public long getRegexBudget() {
+		return regexBudget;
+	}
+
+	/**
+	 * @return The number of values from which they are split in parallel, 0 for never.
+	 */
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * @return True if only the first of equal values goes into a multivalued claim.
+	 */
+	public boolean isDistinct() {
+		return distinct;
+	}
+
+	/**
+	 * @return The transforms run on every value, {@link ValueTransform#NONE} by default. With
+	 *         {@link UserAttributeSplitterMapper#INTERN} on, they also cut segments out through {@link SegmentInternPool}.
+	 */
+	public ValueTransform getTransform() {
+		return transform;
+	}
+
+	/**
+	 * @return The most values and bytes each claim may hold, {@link ClaimBudget#UNLIMITED} by default.
+	 */
+	public ClaimBudget getClaimBudget() {
+		return claimBudget;
+	}
+
+	public boolean isSkipMissmatch() {
+		return skipMissmatch;
+	}
+
+	/**
+	 * @return True if every value goes into the claim, false if only the first one does.
+	 */
+	public boolean isMultivalued() {
+		return multivalued;
+	}
+
+	/**
+	 * @return The claims to fill, the mapper's own claim first.
+	 */
+	public List<SplitClaim> getClaims() {
+		return claims;
+	}
+
+	/**
+	 * @return For each claim of {@link #getClaims()}, the segment it wants. Do not modify.
+	 */
+	int[] getClaimSegmentIndexes() {
+		return claimSegmentIndexes;
+	}
+
+	/**
+	 * @return Which tokens to log, {@link SplitDiagnostics#OFF} unless an operator turned it on.
+	 */
+	public SplitDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+	/**
+	 * @return The metrics of the mapper, shared by every plan compiled for the same mapper id.
+	 */
+	public SplitMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return The writer of the mapper's own claim.
+	 */
+	ClaimWriter getWriter() {
+		return claims.get(0).getWriter();
+	}
+}
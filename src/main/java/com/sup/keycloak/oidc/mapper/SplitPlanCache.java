@@ -0,0 +1,142 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Caches the {@link SplitPlan} of each mapper, keyed by the mapper id.
+ *
+ * Each entry remembers the configuration it was compiled from. When the configuration no longer equals
+ * it (an admin edited the mapper) the plan is compiled again. A mapper that is not saved yet has no id,
+ * so its plan is compiled for every call and not cached.
+ *
+ * When the cache is full one plan is evicted, the oldest that has not been used since eviction last passed
+ * over it. A plan that was used is moved to the back instead, so the plans of mappers still issuing tokens stay.
+ *
+ * Evicting a plan leaves the mapper's {@link SplitMetrics} alone, so the counters and MBean of a mapper that is
+ * still used carry on when its plan is compiled again. The shared cache removes them when a mapper is invalidated.
+ */
+public final class SplitPlanCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private static final SplitPlanCache SHARED_CACHE = new SplitPlanCache(DEFAULT_MAX_SIZE,
+			SplitMetricsRegistry.shared()::remove);
+
+	private final int maxSize;
+	private final Consumer<String> invalidated;
+	private final ConcurrentHashMap<String, Entry> plans = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentLinkedQueue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+
+	public SplitPlanCache(final int maxSize) {
+		this(maxSize, mapperId -> { });
+	}
+
+	/**
+	 * @param maxSize The most plans kept.
+	 * @param invalidated Called with the mapper id of every plan invalidated, not with those evicted.
+	 */
+	SplitPlanCache(final int maxSize, final Consumer<String> invalidated) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.invalidated = invalidated;
+	}
+
+	/**
+	 * @return The cache shared by every mapper instance.
+	 */
+	public static SplitPlanCache shared() {
+		return SHARED_CACHE;
+	}
+
+	/**
+	 * Return the plan for the mapper, compiling it if the mapper is new or its configuration changed.
+	 *
+	 * @param mappingModel The mapper.
+	 * @return The compiled plan.
+	 */
+	public SplitPlan get(final ProtocolMapperModel mappingModel) {
+		final String mapperId = mappingModel.getId();
+		final Map<String, String> config = SplitPlan.configOf(mappingModel);
+		final int fingerprint = SplitPlan.fingerprintOf(config);
+		if (mapperId == null || mapperId.isEmpty()) {
+			// every unsaved mapper would share one entry.
+			return SplitPlan.compile(mappingModel, config, fingerprint);
+		}
+		final Entry cached = plans.get(mapperId);
+		if (cached != null && cached.plan.isCompiledFrom(fingerprint, config)) {
+			if (!cached.used) {
+				cached.used = true;
+			}
+			return cached.plan;
+		}
+		final SplitPlan compiled = SplitPlan.compile(mappingModel, config, fingerprint);
+		if (plans.put(mapperId, new Entry(compiled)) == null) {
+			// an edited mapper keeps its place.
+			insertionOrder.add(mapperId);
+			evictIfFull();
+		}
+		return compiled;
+	}
+
+	private void evictIfFull() {
+		while (plans.size() > maxSize) {
+			final String eldest = insertionOrder.poll();
+			if (eldest == null) {
+				return;
+			}
+			final Entry entry = plans.get(eldest);
+			if (entry == null) {
+				continue;
+			}
+			if (entry.used) {
+				// a second chance, evicted next time round unless it is used again.
+				entry.used = false;
+				insertionOrder.add(eldest);
+			} else {
+				plans.remove(eldest, entry);
+			}
+		}
+	}
+
+	/**
+	 * Forget the plan of a mapper, and with the shared cache its metrics.
+	 *
+	 * @param mapperId The mapper id.
+	 */
+	public void invalidate(final String mapperId) {
+		if (mapperId != null && plans.remove(mapperId) != null) {
+			insertionOrder.remove(mapperId);
+			invalidated.accept(mapperId);
+		}
+	}
+
+	public int size() {
+		return plans.size();
+	}
+
+	/**
+	 * Forget every plan, keeping the metrics of their mappers.
+	 */
+	public void clear() {
+		plans.clear();
+		insertionOrder.clear();
+	}
+
+	private static final class Entry {
+
+		private final SplitPlan plan;
+		// set when the plan is used, cleared when eviction passes over it.
+		private volatile boolean used;
+
+		Entry(final SplitPlan plan) {
+			this.plan = plan;
+		}
+	}
+}
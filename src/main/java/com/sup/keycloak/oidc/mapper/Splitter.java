@@ -0,0 +1,684 @@
+package com.sup.keycloak.oidc.mapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled split token.
+ *
+ * Every implementation but {@link ExtractSplitter} follows the `String.split(String)` contract: segments are
+ * separated by each non-overlapping occurrence of the token, trailing empty segments are dropped, and a value
+ * without the token is returned as a single segment.
+ *
+ * {@link #select(String, boolean)} walks the value delimiter by delimiter and only cuts out the one
+ * segment it returns, rather than building every segment as {@link #split(String)} does.
+ */
+public abstract class Splitter {
+
+	/**
+	 * Returned by {@link DelimitedSplitter#nextDelimiter} when there are no more delimiters.
+	 */
+	static final long NO_DELIMITER = -1L;
+
+	/**
+	 * Returned by {@link #bounds} when there is no segment to return.
+	 */
+	static final long NO_SEGMENT = -1L;
+
+	/**
+	 * Returned by {@link #bounds} when the value does not contain the split token at all.
+	 */
+	static final long NOT_SPLIT = -2L;
+
+	/**
+	 * The segment index of the first segment.
+	 */
+	public static final int FIRST_SEGMENT = 0;
+
+	/**
+	 * The segment index of the last segment.
+	 */
+	public static final int FINAL_SEGMENT = -1;
+
+	/**
+	 * The number of characters a regular expression may read from one value before it is stopped,
+	 * enough for any sane pattern on any attribute value.
+	 */
+	public static final long DEFAULT_REGEX_BUDGET = 100_000L;
+
+	private static final long INT_MASK = 0xFFFFFFFFL;
+
+	Splitter() {
+		// only the implementations below.
+	}
+
+	/**
+	 * Compile a split token.
+	 *
+	 * @param splitToken The token to split on, must not be null or empty.
+	 * @param splitMode  How the token is interpreted.
+	 * @return The compiled splitter.
+	 * @throws PatternSyntaxException If the mode is {@link SplitMode#REGEX} and the token does not compile.
+	 */
+	public static Splitter compile(final String splitToken, final SplitMode splitMode) {
+		return compile(splitToken, splitMode, DEFAULT_REGEX_BUDGET);
+	}
+
+	/**
+	 * Compile a split token.
+	 *
+	 * @param splitToken  The token to split on, must not be null or empty.
+	 * @param splitMode   How the token is interpreted.
+	 * @param regexBudget The number of characters a regular expression may read from one value, 0 for no limit.
+	 *                    Past it, splitting throws {@link SplitBudgetExceededException}.
+	 * @return The compiled splitter.
+	 * @throws PatternSyntaxException If the mode is {@link SplitMode#REGEX} and the token does not compile.
+	 */
+	public static Splitter compile(final String splitToken, final SplitMode splitMode, final long regexBudget) {
+		return compile(splitToken, splitMode, regexBudget, null);
+	}
+
+	/**
+	 * Compile a split token.
+	 *
+	 * @param splitToken   The token to split on, must not be null or empty.
+	 * @param splitMode    How the token is interpreted.
+	 * @param regexBudget  The number of characters a regular expression may read from one value, 0 for no limit.
+	 * @param extractGroup For {@link SplitMode#EXTRACT}, the number or name of the group to extract. `null` for the
+	 *                     first group, or the whole match if the token has no groups.
+	 * @return The compiled splitter.
+	 * @throws PatternSyntaxException   If the mode is {@link SplitMode#REGEX} or {@link SplitMode#EXTRACT} and the
+	 *                                  token does not compile.
+	 * @throws IllegalArgumentException If the extract group is not a group of the token.
+	 */
+	public static Splitter compile(final String splitToken, final SplitMode splitMode, final long regexBudget,
+			final String extractGroup) {
+		if (splitMode == SplitMode.EXTRACT) {
+			return new ExtractSplitter(SplitPatternCache.shared().get(splitToken), regexBudget, extractGroup);
+		}
+		if (splitMode == SplitMode.LITERAL) {
+			return new LiteralSplitter(splitToken);
+		}
+		if (splitMode == SplitMode.CHARACTER_SET) {
+			return new CharacterSetSplitter(splitToken);
+		}
+		return new RegexSplitter(SplitPatternCache.shared().get(splitToken), regexBudget);
+	}
+
+	/**
+	 * Split the value into its segments.
+	 *
+	 * @param value The value to split, must not be null.
+	 * @return The segments, with trailing empty segments removed.
+	 */
+	public abstract String[] split(String value);
+
+	/**
+	 * Return the first or last segment of the value, the same as `split(value)[0]` or
+	 * `split(value)[length - 1]`, but without splitting the rest of the value.
+	 *
+	 * @param value      The value to split, must not be null.
+	 * @param finalValue If true the last segment is returned, otherwise the first.
+	 * @return The segment, or `null` if it is empty or the value is nothing but split tokens.
+	 */
+	public String select(final String value, final boolean finalValue) {
+		return segment(value, bounds(value, finalValue ? FINAL_SEGMENT : FIRST_SEGMENT));
+	}
+
+	/**
+	 * Return one segment of the value, the same as `split(value)[segmentIndex]`, or counting back
+	 * from the end when the index is negative. The scan stops as soon as it reaches a forward index.
+	 *
+	 * @param value        The value to split, must not be null.
+	 * @param segmentIndex The segment to return. 0 is the first, -1 the last, -2 the one before it.
+	 * @return The segment, or `null` if it is empty or there is no such segment.
+	 */
+	public String select(final String value, final int segmentIndex) {
+		return segment(value, bounds(value, segmentIndex), segmentIndex);
+	}
+
+	/**
+	 * @return True if this extracts a capture group rather than splitting, see {@link SplitMode#EXTRACT}.
+	 *         A value it finds nothing in is a missmatch whatever segment is asked for.
+	 */
+	boolean isExtract() {
+		return false;
+	}
+
+	/**
+	 * Cut the segment with the given index out of the value.
+	 *
+	 * @return The segment, the whole value if it was {@link #NOT_SPLIT} and the index is the first or last,
+	 *         or `null` if there is no segment.
+	 */
+	static String segment(final String value, final long bounds, final int segmentIndex) {
+		if (bounds == NOT_SPLIT && !isFirstOrFinal(segmentIndex)) {
+			// the whole value is the only segment.
+			return null;
+		}
+		return segment(value, bounds);
+	}
+
+	/**
+	 * @return True if the index picks the only segment of a value that was not split.
+	 */
+	static boolean isFirstOrFinal(final int segmentIndex) {
+		return segmentIndex == FIRST_SEGMENT || segmentIndex == FINAL_SEGMENT;
+	}
+
+	/**
+	 * Cut a segment found by {@link #bounds} out of the value.
+	 *
+	 * @return The segment, the whole value if it was {@link #NOT_SPLIT}, or `null` if there is no segment.
+	 */
+	static String segment(final String value, final long bounds) {
+		if (bounds == NO_SEGMENT) {
+			return null;
+		}
+		if (bounds == NOT_SPLIT) {
+			return value;
+		}
+		return value.substring(start(bounds), end(bounds));
+	}
+
+	/**
+	 * Find one segment of the value.
+	 *
+	 * @param segmentIndex The segment to find. 0 is the first, -1 the last, -2 the one before it.
+	 * @return The packed start and end of the segment, {@link #NO_SEGMENT} if it is empty or out of range,
+	 *         or {@link #NOT_SPLIT} if the value does not contain the split token.
+	 */
+	abstract long bounds(String value, int segmentIndex);
+
+	/**
+	 * Find the segments for several claims in one pass over the value.
+	 *
+	 * @param value          The value to split, must not be null.
+	 * @param segmentIndexes For each claim, the segment it wants. 0 is the first, -1 the last.
+	 * @param bounds         Receives, for each claim, what {@link #bounds(String, int)} would return.
+	 */
+	abstract void bounds(String value, int[] segmentIndexes, long[] bounds);
+
+	/**
+	 * @return The value, counting every character a matcher reads when there is a budget.
+	 */
+	static CharSequence budgeted(final String value, final long budget) {
+		return budget > 0 ? new BudgetedCharSequence(value, budget) : value;
+	}
+
+	static long pack(final int start, final int end) {
+		return ((long) start << Integer.SIZE) | (end & INT_MASK);
+	}
+
+	static int start(final long bounds) {
+		return (int) (bounds >>> Integer.SIZE);
+	}
+
+	static int end(final long bounds) {
+		return (int) bounds;
+	}
+
+	/**
+	 * A splitter that finds its segments between delimiters, one {@link #nextDelimiter} at a time. The
+	 * segments follow the `String.split(String)` contract.
+	 */
+	abstract static class DelimitedSplitter extends Splitter {
+
+		/**
+		 * The scan stops as soon as it reaches a forward index.
+		 */
+		@Override
+		@SuppressWarnings("PMD.AssignmentInOperand")
+		long bounds(final String value, final int segmentIndex) {
+			if (segmentIndex < FINAL_SEGMENT) {
+				// counting back further than the last segment needs to remember the segments seen.
+				final long[] bounds = new long[1];
+				bounds(value, new int[] {segmentIndex}, bounds);
+				return bounds[0];
+			}
+			final Object scan = newScan(value);
+			int segmentStart = 0;
+			int currentIndex = 0;
+			// the last segment is the last one that is not empty, as String.split drops the trailing empty ones.
+			long lastNonEmpty = NO_SEGMENT;
+			long delimiter;
+			while ((delimiter = nextDelimiter(value, segmentStart, scan)) != NO_DELIMITER) {
+				final int delimiterStart = start(delimiter);
+				final int delimiterEnd = end(delimiter);
+				if (segmentStart == 0 && delimiterStart == 0 && delimiterEnd == 0) {
+					// String.split ignores a zero width match at the beginning.
+					continue;
+				}
+				if (currentIndex == segmentIndex) {
+					// we have the segment, there is no need to look at the rest of the value.
+					return delimiterStart > segmentStart ? pack(segmentStart, delimiterStart) : NO_SEGMENT;
+				}
+				if (delimiterStart > segmentStart) {
+					lastNonEmpty = pack(segmentStart, delimiterStart);
+				}
+				currentIndex++;
+				segmentStart = delimiterEnd;
+			}
+			if (segmentStart == 0) {
+				return NOT_SPLIT;
+			}
+			final boolean lastSegmentEmpty = segmentStart >= value.length();
+			if (segmentIndex == FINAL_SEGMENT) {
+				return lastSegmentEmpty ? lastNonEmpty : pack(segmentStart, value.length());
+			}
+			return currentIndex == segmentIndex && !lastSegmentEmpty ? pack(segmentStart, value.length()) : NO_SEGMENT;
+		}
+
+		/**
+		 * The scan stops once every forward index has its segment, unless some index counts back from the end.
+		 */
+		@Override
+		@SuppressWarnings("PMD.AssignmentInOperand")
+		void bounds(final String value, final int[] segmentIndexes, final long[] bounds) {
+			int maxForward = -1;
+			int maxBackward = 0;
+			for (int segmentIndex : segmentIndexes) {
+				if (segmentIndex >= 0) {
+					maxForward = Math.max(maxForward, segmentIndex);
+				} else {
+					maxBackward = Math.max(maxBackward, -segmentIndex);
+				}
+			}
+			Arrays.fill(bounds, NO_SEGMENT);
+			// the last segments of the split array, with trailing empty segments left out as String.split does.
+			final SegmentRing ring = maxBackward > 0 ? new SegmentRing(maxBackward) : null;
+			final Object scan = newScan(value);
+			int segmentStart = 0;
+			int currentIndex = 0;
+			long delimiter;
+			while ((delimiter = nextDelimiter(value, segmentStart, scan)) != NO_DELIMITER) {
+				final int delimiterStart = start(delimiter);
+				final int delimiterEnd = end(delimiter);
+				if (segmentStart == 0 && delimiterStart == 0 && delimiterEnd == 0) {
+					// String.split ignores a zero width match at the beginning.
+					continue;
+				}
+				final long segment = delimiterStart > segmentStart ? pack(segmentStart, delimiterStart) : NO_SEGMENT;
+				recordForward(segmentIndexes, bounds, currentIndex, segment);
+				if (ring != null) {
+					ring.add(segment);
+				}
+				currentIndex++;
+				segmentStart = delimiterEnd;
+				if (ring == null && currentIndex > maxForward) {
+					return;
+				}
+			}
+			if (segmentStart == 0) {
+				Arrays.fill(bounds, NOT_SPLIT);
+				return;
+			}
+			final long segment = segmentStart < value.length() ? pack(segmentStart, value.length()) : NO_SEGMENT;
+			recordForward(segmentIndexes, bounds, currentIndex, segment);
+			if (ring != null) {
+				ring.add(segment);
+				for (int i = 0; i < segmentIndexes.length; i++) {
+					if (segmentIndexes[i] < 0) {
+						bounds[i] = ring.fromEnd(-segmentIndexes[i]);
+					}
+				}
+			}
+		}
+
+		private static void recordForward(final int[] segmentIndexes, final long[] bounds, final int currentIndex, final long segment) {
+			for (int i = 0; i < segmentIndexes.length; i++) {
+				if (segmentIndexes[i] == currentIndex) {
+					bounds[i] = segment;
+				}
+			}
+		}
+
+		/**
+		 * Remembers the last few segments of a scan. Empty segments are only kept once a segment that is not
+		 * empty follows them, so trailing empty segments never count, the same as String.split.
+		 */
+		private static final class SegmentRing {
+
+			private final long[] segments;
+			private int count;
+			private int pendingEmpty;
+
+			SegmentRing(final int size) {
+				this.segments = new long[size];
+			}
+
+			void add(final long segment) {
+				if (segment == NO_SEGMENT) {
+					pendingEmpty++;
+					return;
+				}
+				if (pendingEmpty >= segments.length) {
+					Arrays.fill(segments, NO_SEGMENT);
+					count += pendingEmpty;
+				} else {
+					for (int i = 0; i < pendingEmpty; i++) {
+						segments[count++ % segments.length] = NO_SEGMENT;
+					}
+				}
+				pendingEmpty = 0;
+				segments[count++ % segments.length] = segment;
+			}
+
+			/**
+			 * @param back 1 for the last segment, 2 for the one before it.
+			 */
+			long fromEnd(final int back) {
+				final int position = count - back;
+				return position < 0 ? NO_SEGMENT : segments[position % segments.length];
+			}
+		}
+
+		/**
+		 * Start a scan of the value.
+		 *
+		 * @return Any state {@link #nextDelimiter} needs, or `null` if it needs none.
+		 */
+		abstract Object newScan(String value);
+
+		/**
+		 * Find the next delimiter, which must not start before `from`.
+		 *
+		 * @return The packed start and end of the delimiter, or {@link #NO_DELIMITER} if there are no more.
+		 */
+		abstract long nextDelimiter(String value, int from, Object scan);
+
+		/**
+		 * Split with {@link #nextDelimiter}, for the implementations whose delimiters are never empty.
+		 */
+		String[] splitOnDelimiters(final String value) {
+			long delimiter = nextDelimiter(value, 0, null);
+			if (delimiter == NO_DELIMITER) {
+				return new String[] {value};
+			}
+			final List<String> segments = new ArrayList<String>();
+			int start = 0;
+			while (delimiter != NO_DELIMITER) {
+				segments.add(value.substring(start, start(delimiter)));
+				start = end(delimiter);
+				delimiter = nextDelimiter(value, start, null);
+			}
+			segments.add(value.substring(start));
+			// drop the trailing empty segments, the same as String.split.
+			int size = segments.size();
+			while (size > 0 && segments.get(size - 1).isEmpty()) {
+				size--;
+			}
+			return segments.subList(0, size).toArray(new String[0]);
+		}
+	}
+
+	/**
+	 * Literal split, a plain `indexOf` walk that never touches `java.util.regex`.
+	 */
+	static final class LiteralSplitter extends DelimitedSplitter {
+
+		private final String token;
+
+		LiteralSplitter(final String token) {
+			this.token = token;
+		}
+
+		@Override
+		public String[] split(final String value) {
+			return splitOnDelimiters(value);
+		}
+
+		@Override
+		Object newScan(final String value) {
+			return null;
+		}
+
+		@Override
+		long nextDelimiter(final String value, final int from, final Object scan) {
+			final int index = value.indexOf(token, from);
+			return index < 0 ? NO_DELIMITER : pack(index, index + token.length());
+		}
+	}
+
+	/**
+	 * Split on any one character of the token, found in a single loop over the value.
+	 *
+	 * ASCII delimiters are two 64 bit masks, so the common case is a shift and an and per character. Any other
+	 * delimiter, including one outside the basic multilingual plane, is looked up in a sorted array of code points.
+	 */
+	static final class CharacterSetSplitter extends DelimitedSplitter {
+
+		private static final int ASCII = 128;
+
+		// bit c is set for each delimiter c below 64, and bit c - 64 for each delimiter from 64 to 127.
+		private final long lowMask;
+		private final long highMask;
+		private final int[] otherCodePoints;
+
+		CharacterSetSplitter(final String token) {
+			long low = 0;
+			long high = 0;
+			for (int codePoint : token.codePoints().filter(codePoint -> codePoint < ASCII).toArray()) {
+				if (codePoint < Long.SIZE) {
+					low |= 1L << codePoint;
+				} else {
+					high |= 1L << (codePoint - Long.SIZE);
+				}
+			}
+			this.lowMask = low;
+			this.highMask = high;
+			this.otherCodePoints = token.codePoints().filter(codePoint -> codePoint >= ASCII).distinct().sorted().toArray();
+		}
+
+		@Override
+		public String[] split(final String value) {
+			return splitOnDelimiters(value);
+		}
+
+		@Override
+		Object newScan(final String value) {
+			return null;
+		}
+
+		@Override
+		long nextDelimiter(final String value, final int from, final Object scan) {
+			final int length = value.length();
+			final boolean asciiOnly = otherCodePoints.length == 0;
+			int index = from;
+			while (index < length) {
+				final char c = value.charAt(index);
+				if (c < ASCII) {
+					final long mask = c < Long.SIZE ? lowMask : highMask;
+					if ((mask & (1L << c)) != 0) {
+						return pack(index, index + 1);
+					}
+					index++;
+				} else if (asciiOnly) {
+					index++;
+				} else {
+					final int codePoint = value.codePointAt(index);
+					final int width = Character.charCount(codePoint);
+					if (Arrays.binarySearch(otherCodePoints, codePoint) >= 0) {
+						return pack(index, index + width);
+					}
+					index += width;
+				}
+			}
+			return NO_DELIMITER;
+		}
+	}
+
+	/**
+	 * Regular expression split, using a pattern from the {@link SplitPatternCache}.
+	 */
+	static final class RegexSplitter extends DelimitedSplitter {
+
+		private final Pattern pattern;
+		private final long budget;
+
+		RegexSplitter(final Pattern pattern) {
+			this(pattern, 0);
+		}
+
+		RegexSplitter(final Pattern pattern, final long budget) {
+			this.pattern = pattern;
+			this.budget = budget;
+		}
+
+		@Override
+		public String[] split(final String value) {
+			return pattern.split(budgeted(value, budget));
+		}
+
+		@Override
+		Object newScan(final String value) {
+			return pattern.matcher(budgeted(value, budget));
+		}
+
+		@Override
+		long nextDelimiter(final String value, final int from, final Object scan) {
+			// the matcher carries on from its previous match, which is where `from` points.
+			final Matcher matcher = (Matcher) scan;
+			return matcher.find() ? pack(matcher.start(), matcher.end()) : NO_DELIMITER;
+		}
+	}
+
+	/**
+	 * Extract one capture group of a regular expression, with a single `find()` per value.
+	 *
+	 * The group is the only segment of a value, whatever segment index is asked for, so the rest of the value
+	 * past the match is never read. A value the pattern is not found in is {@link #NOT_SPLIT}.
+	 */
+	static final class ExtractSplitter extends Splitter {
+
+		private static final int WHOLE_MATCH = 0;
+
+		private final Pattern pattern;
+		private final long budget;
+		private final int group;
+		// null when the group is picked by its number.
+		private final String groupName;
+
+		ExtractSplitter(final Pattern pattern, final long budget, final String extractGroup) {
+			final int groupCount = pattern.matcher("").groupCount();
+			final String wanted = extractGroup == null ? "" : extractGroup.trim();
+			this.pattern = pattern;
+			this.budget = budget;
+			if (wanted.isEmpty()) {
+				this.group = groupCount > 0 ? 1 : WHOLE_MATCH;
+				this.groupName = null;
+			} else if (Character.isDigit(wanted.charAt(0))) {
+				this.group = groupNumberOf(wanted, groupCount);
+				this.groupName = null;
+			} else {
+				checkGroupName(pattern, wanted);
+				this.group = -1;
+				this.groupName = wanted;
+			}
+		}
+
+		/**
+		 * Java 8 cannot list the named groups of a pattern, but a matcher rejects a name that is not one. It only
+		 * looks once it has a match, so the empty alternative in front makes the pattern match the empty value.
+		 */
+		private static void checkGroupName(final Pattern pattern, final String name) {
+			final Matcher matcher = Pattern.compile("|" + pattern.pattern(), pattern.flags()).matcher("");
+			matcher.find();
+			try {
+				matcher.start(name);
+			} catch (IllegalArgumentException ex) {
+				throw new IllegalArgumentException("The split token has no group named " + name, ex);
+			}
+		}
+
+		private static int groupNumberOf(final String wanted, final int groupCount) {
+			final int number;
+			try {
+				number = Integer.parseInt(wanted);
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("The extract group is not a number or a group name: " + wanted, ex);
+			}
+			if (number > groupCount) {
+				throw new IllegalArgumentException("The split token has " + groupCount + " groups, there is no group " + number);
+			}
+			return number;
+		}
+
+		@Override
+		boolean isExtract() {
+			return true;
+		}
+
+		@Override
+		public String[] split(final String value) {
+			final long bounds = bounds(value, FIRST_SEGMENT);
+			if (bounds == NOT_SPLIT) {
+				return new String[] {value};
+			}
+			return bounds == NO_SEGMENT ? new String[0] : new String[] {segment(value, bounds)};
+		}
+
+		@Override
+		long bounds(final String value, final int segmentIndex) {
+			final Matcher matcher = pattern.matcher(budgeted(value, budget));
+			if (!matcher.find()) {
+				return NOT_SPLIT;
+			}
+			final int start = groupName == null ? matcher.start(group) : matcher.start(groupName);
+			final int end = groupName == null ? matcher.end(group) : matcher.end(groupName);
+			// a group that took no part in the match is -1, and one that matched nothing is empty.
+			return start < end ? pack(start, end) : NO_SEGMENT;
+		}
+
+		@Override
+		void bounds(final String value, final int[] segmentIndexes, final long[] bounds) {
+			Arrays.fill(bounds, bounds(value, FIRST_SEGMENT));
+		}
+	}
+
+	/**
+	 * A value that throws {@link SplitBudgetExceededException} once the matcher has read too many characters.
+	 *
+	 * `java.util.regex` reads the input through `charAt`, including every step it backtracks, so counting
+	 * those reads bounds the time a pattern can spend on one value, whatever the pattern.
+	 */
+	static final class BudgetedCharSequence implements CharSequence {
+
+		private final String value;
+		private final long budget;
+		private long steps;
+
+		BudgetedCharSequence(final String value, final long budget) {
+			this.value = value;
+			this.budget = budget;
+		}
+
+		@Override
+		public char charAt(final int index) {
+			steps++;
+			if (steps > budget) {
+				throw new SplitBudgetExceededException(budget);
+			}
+			return value.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return value.length();
+		}
+
+		@Override
+		public CharSequence subSequence(final int start, final int end) {
+			return value.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return value;
+		}
+	}
+}
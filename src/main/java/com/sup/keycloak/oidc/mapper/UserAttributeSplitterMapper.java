@@ -1,17 +1,27 @@
 package com.sup.keycloak.oidc.mapper;
 
+import org.keycloak.models.ClientSessionContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperContainerModel;
 import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.ProtocolMapperConfigException;
 import org.keycloak.protocol.ProtocolMapperUtils;
 import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.provider.ProviderEventListener;
 import org.keycloak.representations.IDToken;
 import org.keycloak.protocol.oidc.mappers.AbstractOIDCProtocolMapper;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
 import org.jboss.logging.Logger;
 import org.keycloak.protocol.oidc.mappers.*;
@@ -26,6 +36,9 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 
 	public static final int MIN_ATTRIBUTE_NUM = 1;
 
+	// The session attributes that share the claims between the tokens of one request.
+	static final String REQUEST_ATTRIBUTE_PREFIX = "com.sup.keycloak.oidc.mapper.claims:";
+
 	public static final
 	String PROVIDER_ID = "oidc-usermodel-splitter-attribute-mapper";
 	public static final String DISPLAY_TYPE = "User Attribute Splitter";
@@ -36,6 +49,16 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 	public static final String SPLIT_TOKEN_LABEL = "Split Token";
 	public static final String SPLIT_TOKEN_HELP_TEXT = "The string to split the user attribute on. EG: an @ will split an email address into user and domain.";
 
+	// Split Mode
+	public static final String SPLIT_MODE = "split-mode";
+	public static final String SPLIT_MODE_LABEL = "Split Mode";
+	public static final String SPLIT_MODE_HELP_TEXT = "How the split token is read. literal: the token is matched as plain text, so | or . work as typed. character-set: split on any one character of the token, EG: @;| splits on @, ; or |. regex: the token is a java regular expression (the default). extract: the token is a java regular expression, and the group picked by Extract Group is put in the claim rather than a segment.";
+
+	// Extract group
+	public static final String EXTRACT_GROUP = "split-extract-group";
+	public static final String EXTRACT_GROUP_LABEL = "Extract Group";
+	public static final String EXTRACT_GROUP_HELP_TEXT = "With Split Mode extract, the number or name of the group of the split token to put in the claim, EG: 1 or cn. Empty for the first group, or the whole match when the token has no groups. A value the token is not found in is a missmatch.";
+
 	// Multivalued
 	public static final String MULTIVALUED = "split-multivalued";
 	public static final String MULTIVALUED_LABEL = "Multivalued";
@@ -46,11 +69,64 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 	public static final String FINAL_VALUE_LABEL = "Final Value";
 	public static final String FINAL_VALUE_HELP_TEXT = "By default, the first value is returned, this will return the final value.";
 
+	// Segment index
+	public static final String SEGMENT_INDEX = "split-segment-index";
+	public static final String SEGMENT_INDEX_LABEL = "Segment Index";
+	public static final String SEGMENT_INDEX_HELP_TEXT = "Return this segment instead of the first or final one. 0 is the first, 2 the third, -1 the last and -2 the one before it. When set, Final Value is ignored.";
+
+	// Regex budget
+	public static final String REGEX_BUDGET = "split-regex-budget";
+	public static final String REGEX_BUDGET_LABEL = "Regex Step Budget";
+	public static final String REGEX_BUDGET_HELP_TEXT = "The number of characters the split token may read from one value, counting every backtrack. A value that needs more is treated as a missmatch, so a bad pattern cannot stall the token endpoint. 0 turns the limit off.";
+
+	// Distinct
+	public static final String DISTINCT = "split-distinct";
+	public static final String DISTINCT_LABEL = "Distinct";
+	public static final String DISTINCT_HELP_TEXT = "Only put the first of equal values in a multivalued claim, EG: the domain of many email aliases goes in once. The order they were first seen in is kept.";
+
+	// Claim budget
+	public static final String MAX_VALUES = "split-max-values";
+	public static final String MAX_VALUES_LABEL = "Max Values";
+	public static final String MAX_VALUES_HELP_TEXT = "The most values put in each claim. Once it is full the remaining attribute values are not split. Empty or 0 for no limit.";
+	public static final String MAX_BYTES = "split-max-bytes";
+	public static final String MAX_BYTES_LABEL = "Max Bytes";
+	public static final String MAX_BYTES_HELP_TEXT = "The most UTF-8 bytes of values put in each claim, to keep tokens under proxy header limits. Values are added in order until the next one would not fit. Empty or 0 for no limit.";
+
 	// Skip if no match
 	public static final String SKIP_MISSMATCH = "split-skip-missmatch";
 	public static final String SKIP_MISSMATCH_LABEL = "Ignore Missmatch";
 	public static final String SKIP_MISSMATCH_HELP_TEXT = "Ignore the attribute, if it cannot be split, by the splitter value. ie if you want to split by X and there is no X in the then TRUE: skip value, FALSE: add the full value";
 
+	// Diagnostics
+	public static final String DIAGNOSTICS = "split-diagnostics";
+	public static final String DIAGNOSTICS_LABEL = "Diagnostic Sampling";
+	public static final String DIAGNOSTICS_HELP_TEXT = "Log how one in every N tokens is mapped by this mapper, at INFO. 1 logs every token. Empty or 0 turns it off, which is the default.";
+
+	// Parallel threshold
+	public static final String PARALLEL_THRESHOLD = "split-parallel-threshold";
+	public static final String PARALLEL_THRESHOLD_LABEL = "Parallel Threshold";
+	public static final String PARALLEL_THRESHOLD_HELP_TEXT = "When a multivalued attribute has at least this many values, split them across cores on a small dedicated pool. The claim keeps the order of the values. Additional Claims are always split on the request thread. Empty or 0 always splits on the request thread, which is the default.";
+
+	// Group attribute cache
+	public static final String GROUP_CACHE_TTL = "split-group-cache-ttl";
+	public static final String GROUP_CACHE_TTL_LABEL = "Group Attribute Cache TTL";
+	public static final String GROUP_CACHE_TTL_HELP_TEXT = "With Aggregate attribute values on, how many seconds the values a group gives its members are reused before the group tree is walked again. Edits to group attributes show once the time is up, or at once with the split-group-cache event listener enabled on the realm. Empty or 0 walks the groups for every token, which is the default.";
+
+	// Transforms
+	public static final String TRANSFORMS = "split-transforms";
+	public static final String TRANSFORMS_LABEL = "Transforms";
+	public static final String TRANSFORMS_HELP_TEXT = "Applied in order to every value put in the claims: trim, lowercase, uppercase, strip-prefix=<text>, strip-suffix=<text> and max-length=<number>. EG: trim, lowercase, strip-prefix=role_. They run together with the split, so each value is cut out once.";
+
+	// Intern segments
+	public static final String INTERN = "split-intern";
+	public static final String INTERN_LABEL = "Intern Segments";
+	public static final String INTERN_HELP_TEXT = "Reuse one instance of each segment seen before from a small shared pool, rather than copying it out of the value for every token. Worth turning on when the same few segments, EG: domains or tenant prefixes, come up over and over.";
+
+	// Fan out
+	public static final String FAN_OUT = "split-fan-out";
+	public static final String FAN_OUT_LABEL = "Additional Claims";
+	public static final String FAN_OUT_HELP_TEXT = "More claims to fill from the same split, each as claim.name=first, claim.name=final or claim.name=<segment index>. EG: email_domain=final. The attribute is resolved and split once for all of them.";
+
 	private static final List<ProviderConfigProperty> configProperties = new ArrayList<ProviderConfigProperty>();
 	static {
 		ProviderConfigProperty property;
@@ -70,6 +146,24 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 		property.setType(ProviderConfigProperty.STRING_TYPE);
 		configProperties.add(property);
 
+		// Split Mode
+		property = new ProviderConfigProperty();
+		property.setName(SPLIT_MODE);
+		property.setLabel(SPLIT_MODE_LABEL);
+		property.setHelpText(SPLIT_MODE_HELP_TEXT);
+		property.setType(ProviderConfigProperty.LIST_TYPE);
+		property.setOptions(SplitMode.configValues());
+		property.setDefaultValue(SplitMode.REGEX.getConfigValue());
+		configProperties.add(property);
+
+		// Extract group
+		property = new ProviderConfigProperty();
+		property.setName(EXTRACT_GROUP);
+		property.setLabel(EXTRACT_GROUP_LABEL);
+		property.setHelpText(EXTRACT_GROUP_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
+
 		// Multivalued
 		property = new ProviderConfigProperty();
 		property.setName(MULTIVALUED);
@@ -86,6 +180,46 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 		property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
 		configProperties.add(property);
 
+		// Segment index
+		property = new ProviderConfigProperty();
+		property.setName(SEGMENT_INDEX);
+		property.setLabel(SEGMENT_INDEX_LABEL);
+		property.setHelpText(SEGMENT_INDEX_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
+
+		// Regex budget
+		property = new ProviderConfigProperty();
+		property.setName(REGEX_BUDGET);
+		property.setLabel(REGEX_BUDGET_LABEL);
+		property.setHelpText(REGEX_BUDGET_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		property.setDefaultValue(Long.toString(Splitter.DEFAULT_REGEX_BUDGET));
+		configProperties.add(property);
+
+		// Distinct
+		property = new ProviderConfigProperty();
+		property.setName(DISTINCT);
+		property.setLabel(DISTINCT_LABEL);
+		property.setHelpText(DISTINCT_HELP_TEXT);
+		property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+		configProperties.add(property);
+
+		// Claim budget
+		property = new ProviderConfigProperty();
+		property.setName(MAX_VALUES);
+		property.setLabel(MAX_VALUES_LABEL);
+		property.setHelpText(MAX_VALUES_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
+
+		property = new ProviderConfigProperty();
+		property.setName(MAX_BYTES);
+		property.setLabel(MAX_BYTES_LABEL);
+		property.setHelpText(MAX_BYTES_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
+
 		// Skip if missmatch
 		property = new ProviderConfigProperty();
 		property.setName(SKIP_MISSMATCH);
@@ -93,8 +227,60 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 		property.setHelpText(SKIP_MISSMATCH_HELP_TEXT);
 		property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
 		configProperties.add(property);
+
+		// Transforms
+		property = new ProviderConfigProperty();
+		property.setName(TRANSFORMS);
+		property.setLabel(TRANSFORMS_LABEL);
+		property.setHelpText(TRANSFORMS_HELP_TEXT);
+		property.setType(ProviderConfigProperty.MULTIVALUED_STRING_TYPE);
+		configProperties.add(property);
+
+		// Intern segments
+		property = new ProviderConfigProperty();
+		property.setName(INTERN);
+		property.setLabel(INTERN_LABEL);
+		property.setHelpText(INTERN_HELP_TEXT);
+		property.setType(ProviderConfigProperty.BOOLEAN_TYPE);
+		configProperties.add(property);
+
+		// Fan out
+		property = new ProviderConfigProperty();
+		property.setName(FAN_OUT);
+		property.setLabel(FAN_OUT_LABEL);
+		property.setHelpText(FAN_OUT_HELP_TEXT);
+		property.setType(ProviderConfigProperty.MULTIVALUED_STRING_TYPE);
+		configProperties.add(property);
+
+		// Parallel threshold
+		property = new ProviderConfigProperty();
+		property.setName(PARALLEL_THRESHOLD);
+		property.setLabel(PARALLEL_THRESHOLD_LABEL);
+		property.setHelpText(PARALLEL_THRESHOLD_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
+
+		// Group attribute cache
+		property = new ProviderConfigProperty();
+		property.setName(GROUP_CACHE_TTL);
+		property.setLabel(GROUP_CACHE_TTL_LABEL);
+		property.setHelpText(GROUP_CACHE_TTL_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
+
+		// Diagnostics
+		property = new ProviderConfigProperty();
+		property.setName(DIAGNOSTICS);
+		property.setLabel(DIAGNOSTICS_LABEL);
+		property.setHelpText(DIAGNOSTICS_HELP_TEXT);
+		property.setType(ProviderConfigProperty.STRING_TYPE);
+		configProperties.add(property);
 	}
 
+	// kept so close() can unregister the same listener postInit registered.
+	private final ProviderEventListener groupEventListener = GroupAttributeCache.shared()::onEvent;
+	private KeycloakSessionFactory sessionFactory;
+
 	public List<ProviderConfigProperty> getConfigProperties() {
 		return configProperties;
 	}
@@ -119,79 +305,504 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 		return "Map a custom user attribute to a token claim.";
 	}
 
-	@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
+	/**
+	 * Reject a split token that is not a valid regular expression, or an extract group it does not have, when
+	 * the mapper is saved, and compile it into {@link SplitPatternCache} ready for the first token.
+	 */
+	@Override
+	public void validateConfig(KeycloakSession session, RealmModel realm, ProtocolMapperContainerModel client,
+			ProtocolMapperModel mapperModel) throws ProtocolMapperConfigException {
+		final Map<String, String> config = SplitPlan.configOf(mapperModel);
+		final String splitToken = config.get(SPLIT_TOKEN);
+		final SplitMode splitMode = SplitMode.fromConfig(config.get(SPLIT_MODE));
+		if (splitToken == null || splitToken.isEmpty()
+				|| splitMode != SplitMode.REGEX && splitMode != SplitMode.EXTRACT) {
+			return;
+		}
+		try {
+			Splitter.compile(splitToken, splitMode, 0, config.get(EXTRACT_GROUP));
+		} catch (PatternSyntaxException ex) {
+			throw new ProtocolMapperConfigException("Split Token is not a valid regular expression: "
+					+ ex.getDescription() + " near index " + ex.getIndex() + ". Use Split Mode literal to split on it as typed.", ex);
+		} catch (IllegalArgumentException ex) {
+			throw new ProtocolMapperConfigException("Extract Group is not valid: " + ex.getMessage(), ex);
+		}
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+		// drop cached group values when their group or realm is removed.
+		this.sessionFactory = factory;
+		factory.register(groupEventListener);
+	}
+
+	/**
+	 * @return The metrics of every mapper, also published over JMX.
+	 */
+	public static SplitMetricsRegistry metrics() {
+		return SplitMetricsRegistry.shared();
+	}
+
+	@Override
+	@SuppressWarnings("PMD.NullAssignment")
+	public void close() {
+		// Keycloak closes the factory on shutdown and redeploy, the MBeans and listener would otherwise keep this classloader.
+		if (sessionFactory != null) {
+			sessionFactory.unregister(groupEventListener);
+			sessionFactory = null;
+		}
+		SplitMetricsRegistry.shared().close();
+	}
+
 	protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession) {
+		setClaim(token, mappingModel, userSession, null, null);
+	}
+
+	@Override
+	protected void setClaim(IDToken token, ProtocolMapperModel mappingModel, UserSessionModel userSession,
+			KeycloakSession keycloakSession, ClientSessionContext clientSessionCtx) {
+		// The configuration is parsed once per mapper, and again only when it is edited.
+		final SplitPlan plan = SplitPlanCache.shared().get(mappingModel);
+		final long start = System.nanoTime();
+		try {
+			mappedClaims(mappingModel, userSession, keycloakSession, plan).applyTo(token);
+		} finally {
+			plan.getMetrics().recordInvocation(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Map the claims, or reuse those an earlier token of the same request mapped for the same user.
+	 */
+	private static MappedClaims mappedClaims(ProtocolMapperModel mappingModel, UserSessionModel userSession,
+			KeycloakSession keycloakSession, SplitPlan plan) {
+		final String key = keycloakSession == null ? null : requestKeyOf(mappingModel, userSession);
+		if (key != null) {
+			final MappedClaims reused = keycloakSession.getAttribute(key, MappedClaims.class);
+			if (reused != null && reused.isMappedWith(plan)) {
+				plan.getMetrics().recordRequestReuse();
+				return reused;
+			}
+		}
+		final MappedClaims mapped = new MappedClaims(plan);
+		setClaim(mapped, mappingModel, userSession, plan);
+		if (key != null) {
+			keycloakSession.setAttribute(key, mapped);
+		}
+		return mapped;
+	}
 
+	/**
+	 * @return The key of a mapper's claims for a user in the session attributes, or `null` if they cannot be shared.
+	 */
+	static String requestKeyOf(ProtocolMapperModel mappingModel, UserSessionModel userSession) {
+		final UserModel user = userSession.getUser();
+		if (mappingModel.getId() == null || user == null || user.getId() == null) {
+			return null;
+		}
+		return REQUEST_ATTRIBUTE_PREFIX + mappingModel.getId() + ':' + user.getId();
+	}
+
+	private static void setClaim(MappedClaims mapped, ProtocolMapperModel mappingModel, UserSessionModel userSession,
+			SplitPlan plan) {
 		UserModel user = userSession.getUser();
-		final String attributeName = mappingModel.getConfig().get(ProtocolMapperUtils.USER_ATTRIBUTE);
-		final boolean aggregateAttrs = Boolean.valueOf(mappingModel.getConfig().get(ProtocolMapperUtils.AGGREGATE_ATTRS));
+		final String attributeName = plan.getAttributeName();
 		// Get the attribute value from the user attributes.
-		Collection<String> attributeValue = KeycloakModelUtils.resolveAttribute(user, attributeName, aggregateAttrs);
+		Collection<String> attributeValue = plan.isGroupCached()
+				? GroupAttributeCache.shared().resolveAggregated(realmIdOf(userSession), user, attributeName, plan.getGroupCacheTtlNanos())
+				: KeycloakModelUtils.resolveAttribute(user, attributeName, plan.isAggregateAttrs());
+		mapValues(mapped, mappingModel, plan, attributeValue);
+	}
+
+	/**
+	 * Map the resolved values of the attribute into claims, the part of `setClaim` that needs no user session,
+	 * also used by `MapperConfigEvaluator`.
+	 *
+	 * @param attributeValue The values of the attribute, `null` or empty if the user does not have it.
+	 */
+	@SuppressWarnings("PMD.DataflowAnomalyAnalysis")
+	static void mapValues(MappedClaims mapped, ProtocolMapperModel mappingModel, SplitPlan plan,
+			Collection<String> attributeValue) {
+		final SplitMetrics metrics = plan.getMetrics();
+		// false unless an operator turned on diagnostics for this mapper, then nothing below is logged.
+		final boolean diagnose = plan.getDiagnostics().sample();
+		final String attributeName = plan.getAttributeName();
+		if (attributeValue == null || attributeValue.isEmpty()) {
+			metrics.recordMissingAttribute();
+		}
 		if (attributeValue == null) {
-			LOGGER.info("setClaim attributeValue is null for name="+attributeName);
+			if (diagnose) {
+				logDiagnostics(mappingModel, attributeName, "no attribute", null, null);
+			}
 			return;
 		}
-		String splitToken = mappingModel.getConfig().get(SPLIT_TOKEN);
+		// when the mapper is only multivalued through our own option, this writes as if keycloak's option was set.
+		final ClaimWriter writer = plan.getWriter();
 		// if the splitToken is null. No point trying to process.
-		if (splitToken == null || splitToken.isEmpty()) {
+		if (!plan.hasSplitToken()) {
 			// then we do the default behaviour.
-			LOGGER.info("[setClaim] splitToken is null for name="+attributeName);
-			OIDCAttributeMapperHelper.mapClaim(token, mappingModel, attributeValue);
+			final Collection<String> claimValue = budgeted(transformed(attributeValue, plan.getTransform()),
+					plan.getClaimBudget(), metrics);
+			for (SplitClaim claim : plan.getClaims()) {
+				mapped.add(claim.getWriter(), claimValue);
+			}
+			if (diagnose) {
+				logDiagnostics(mappingModel, attributeName, "no split token", attributeValue, attributeValue);
+			}
+			return;
+		}
+		if (plan.getClaims().size() > MIN_ATTRIBUTE_NUM) {
+			// fill every claim from one pass over the values.
+			setFanOutClaims(mapped, plan, attributeValue);
+			if (diagnose) {
+				logDiagnostics(mappingModel, attributeName, "fan out", attributeValue, mapped);
+			}
 			return;
 		}
 
-		// get the first or last value.
-		final boolean finalValue = Boolean.valueOf(mappingModel.getConfig().get(FINAL_VALUE));
-		final boolean skipMissmatch = Boolean.valueOf(mappingModel.getConfig().get(SKIP_MISSMATCH));
+		// null when the split token cannot compile, then every value is treated as a missmatch.
+		final Splitter splitter = plan.getSplitter();
+		// the segment to return, 0 for the first and -1 for the last.
+		final int segmentIndex = plan.getSegmentIndex();
+		final boolean skipMissmatch = plan.isSkipMissmatch();
+		final ValueTransform transform = plan.getTransform();
+		final ClaimBudget budget = plan.getClaimBudget();
 		// If there is only one attributeValue then we just split based on the
 		// split_token
 		if (attributeValue.size() == MIN_ATTRIBUTE_NUM) {
-			LOGGER.info("[setClaim] attributeValue.size() == 1");
-
-			// We don't need to check if it is null, we did this before.
-			if (splitToken != null) {
-				String value = attributeValue.iterator().next();
-				String convertedValue = splitValue(value, splitToken, finalValue, skipMissmatch);
-				if (convertedValue != null)
-				{
-					OIDCAttributeMapperHelper.mapClaim(token, mappingModel, convertedValue);
-					return;
-				}
+			String value = attributeValue.iterator().next();
+			String convertedValue = splitValue(value, splitter, segmentIndex, skipMissmatch, transform, metrics);
+			if (convertedValue != null && fits(convertedValue, budget, metrics))
+			{
+				mapped.add(writer, convertedValue);
+			}
+			if (diagnose) {
+				logDiagnostics(mappingModel, attributeName, "single value", attributeValue, convertedValue);
 			}
 			return;
 		}
-		LOGGER.info("[setClaim] splitToken is null for name="+attributeName);
 
 		// we can assume there is more than one.
 
-		ArrayList<String> values = new ArrayList<String>();
-		// for each value in the string, split it and add it to the token.
-		for (String value : attributeValue) {
-			if (value.contains(splitToken)) {
-				String[] split = value.split(splitToken);
-				if (finalValue) {
-					values.add(split[split.length - 1]);
-				} else {
-					values.add(split[0]);
+		if (!plan.isMultivalued()) {
+			// Only one value goes into the claim, so stop at the first value that gives one.
+			for (String value : attributeValue) {
+				String segment = splitMultiValue(value, splitter, segmentIndex, skipMissmatch, transform, metrics);
+				if (segment != null) {
+					if (!fits(segment, budget, metrics)) {
+						// the first value is the claim, if it is too big there is no claim.
+						return;
+					}
+					mapped.add(writer, segment);
+					if (diagnose) {
+						logDiagnostics(mappingModel, attributeName, "first result", attributeValue, segment);
+					}
+					return;
 				}
-			} else {
-				// if there is no split, just send what is matched.
-				if (!skipMissmatch) {
-					values.add(value);
+			}
+			if (diagnose) {
+				logDiagnostics(mappingModel, attributeName, "first result", attributeValue, null);
+			}
+			return;
+		}
+
+		final ArrayList<String> values;
+		final boolean distinct = plan.isDistinct();
+		if (ParallelSplit.isParallel(attributeValue.size(), plan.getParallelThreshold())) {
+			// a very large attribute, split it across cores, keeping the order of the values.
+			values = ParallelSplit.apply(attributeValue.toArray(new String[0]),
+					value -> splitMultiValue(value, splitter, segmentIndex, skipMissmatch, transform, metrics), distinct,
+					budget, metrics);
+		} else {
+			values = new ArrayList<String>(attributeValue.size());
+			// duplicates are dropped as they are produced, so there is no second pass over the claim.
+			final CompactStringSet seen = distinct ? new CompactStringSet() : null;
+			long bytes = 0;
+			// for each value in the string, split it and add it to the token.
+			for (String value : attributeValue) {
+				String segment = splitMultiValue(value, splitter, segmentIndex, skipMissmatch, transform, metrics);
+				if (segment == null || seen != null && !seen.add(segment)) {
+					continue;
 				}
-				//else {
-					// we are skipping the missmatched case, and returning nothing.
-					// we don't add anything.
-				//}
+				final long segmentBytes = budget.bytesOf(segment);
+				if (!budget.fits(values.size(), bytes, segmentBytes)) {
+					// the claim is full, the rest of the values are not split.
+					metrics.recordTruncation();
+					break;
+				}
+				bytes += segmentBytes;
+				values.add(segment);
 			}
 		}
 		// if we have some values to return in the token, then map it.
 		if (!values.isEmpty()) {
-			OIDCAttributeMapperHelper.mapClaim(token, mappingModel, values);
-		} else {
-			// if there is no values then we don't map anything.
+			mapped.add(writer, values);
+		}
+		// if there is no values then we don't map anything.
+		if (diagnose) {
+			logDiagnostics(mappingModel, attributeName, "multivalued", attributeValue, values);
+		}
+	}
+
+	private static String realmIdOf(UserSessionModel userSession) {
+		final RealmModel realm = userSession.getRealm();
+		return realm == null ? null : realm.getId();
+	}
+
+	/**
+	 * @return True if a single value fits the budget, otherwise the truncation is recorded.
+	 */
+	private static boolean fits(final String value, final ClaimBudget budget, final SplitMetrics metrics) {
+		if (budget.fits(0, 0, budget.bytesOf(value))) {
+			return true;
+		}
+		metrics.recordTruncation();
+		return false;
+	}
+
+	/**
+	 * @return The values transformed, leaving out those the transforms left empty.
+	 */
+	private static Collection<String> transformed(final Collection<String> values, final ValueTransform transform) {
+		if (transform.isNone()) {
+			return values;
+		}
+		final List<String> result = new ArrayList<String>(values.size());
+		for (String value : values) {
+			final String transformedValue = value == null ? null : transform.apply(value);
+			if (transformedValue != null) {
+				result.add(transformedValue);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return The values cut down to the budget, or the values themselves if they fit.
+	 */
+	private static Collection<String> budgeted(final Collection<String> values, final ClaimBudget budget,
+			final SplitMetrics metrics) {
+		if (budget == ClaimBudget.UNLIMITED) {
+			return values;
+		}
+		final List<String> copy = new ArrayList<String>(values);
+		if (budget.truncate(copy)) {
+			metrics.recordTruncation();
+		}
+		return copy;
+	}
+
+	/**
+	 * Log how a sampled token was mapped, only called when {@link #DIAGNOSTICS} is on for the mapper.
+	 */
+	private static void logDiagnostics(ProtocolMapperModel mappingModel, String attributeName, String path,
+			Collection<String> attributeValue, Object claimValue) {
+		LOGGER.infof("[setClaim] mapper=%s attribute=%s path=%s values=%s claim=%s",
+				mappingModel.getName(), attributeName, path, attributeValue, claimValue);
+	}
+
+	/**
+	 * Fill several claims from the same attribute values, splitting each value once for all of them.
+	 *
+	 * The values are always split on the request thread, whatever the {@link #PARALLEL_THRESHOLD}, as each
+	 * claim stops at its own budget and the values go to every claim in one pass.
+	 */
+	private static void setFanOutClaims(MappedClaims mapped, SplitPlan plan, Collection<String> attributeValue) {
+		final List<SplitClaim> claims = plan.getClaims();
+		final int claimCount = claims.size();
+		final Splitter splitter = plan.getSplitter();
+		final int[] segmentIndexes = plan.getClaimSegmentIndexes();
+		final boolean skipMissmatch = plan.isSkipMissmatch();
+		final ValueTransform transform = plan.getTransform();
+		final long[] bounds = new long[claimCount];
+		final SplitMetrics metrics = plan.getMetrics();
+		final String[] segments = new String[claimCount];
+		final ClaimBudget budget = plan.getClaimBudget();
+
+		if (attributeValue.size() == MIN_ATTRIBUTE_NUM) {
+			splitValue(attributeValue.iterator().next(), splitter, segmentIndexes, skipMissmatch, transform, bounds, segments, metrics);
+			for (int i = 0; i < claimCount; i++) {
+				if (segments[i] != null && fits(segments[i], budget, metrics)) {
+					mapped.add(claims.get(i).getWriter(), segments[i]);
+				}
+			}
 			return;
 		}
+
+		if (!plan.isMultivalued()) {
+			// each claim takes the first value that gives it a result, stop once they all have one.
+			final String[] results = new String[claimCount];
+			int remaining = claimCount;
+			for (String value : attributeValue) {
+				splitMultiValue(value, splitter, segmentIndexes, skipMissmatch, transform, bounds, segments, metrics);
+				for (int i = 0; i < claimCount; i++) {
+					if (results[i] == null && segments[i] != null) {
+						results[i] = segments[i];
+						remaining--;
+					}
+				}
+				if (remaining == 0) {
+					break;
+				}
+			}
+			for (int i = 0; i < claimCount; i++) {
+				if (results[i] != null && fits(results[i], budget, metrics)) {
+					mapped.add(claims.get(i).getWriter(), results[i]);
+				}
+			}
+			return;
+		}
+
+		final List<List<String>> values = new ArrayList<List<String>>(claimCount);
+		final CompactStringSet[] seen = plan.isDistinct() ? new CompactStringSet[claimCount] : null;
+		final long[] bytes = new long[claimCount];
+		final boolean[] full = new boolean[claimCount];
+		for (int i = 0; i < claimCount; i++) {
+			values.add(new ArrayList<String>(attributeValue.size()));
+			if (seen != null) {
+				seen[i] = new CompactStringSet();
+			}
+		}
+		int open = claimCount;
+		for (String value : attributeValue) {
+			splitMultiValue(value, splitter, segmentIndexes, skipMissmatch, transform, bounds, segments, metrics);
+			for (int i = 0; i < claimCount; i++) {
+				if (full[i] || segments[i] == null || seen != null && !seen[i].add(segments[i])) {
+					continue;
+				}
+				final List<String> claimValues = values.get(i);
+				final long segmentBytes = budget.bytesOf(segments[i]);
+				if (budget.fits(claimValues.size(), bytes[i], segmentBytes)) {
+					bytes[i] += segmentBytes;
+					claimValues.add(segments[i]);
+				} else {
+					full[i] = true;
+					open--;
+					metrics.recordTruncation();
+				}
+			}
+			if (open == 0) {
+				// every claim is full, the rest of the values are not split.
+				break;
+			}
+		}
+		for (int i = 0; i < claimCount; i++) {
+			if (!values.get(i).isEmpty()) {
+				mapped.add(claims.get(i).getWriter(), values.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Split a single attribute value for several claims, with the same rules as
+	 * {@link #splitValue(String, Splitter, int, boolean, SplitMetrics)}.
+	 *
+	 * @param segments Receives the value for each claim, or `null` if it gets nothing.
+	 */
+	static void splitValue(final String value, final Splitter splitter, final int[] segmentIndexes,
+			final boolean skipMissmatch, final ValueTransform transform, final long[] bounds, final String[] segments,
+			final SplitMetrics metrics) {
+		if (value == null || value.isEmpty()) {
+			Arrays.fill(segments, null);
+			return;
+		}
+		metrics.recordValue();
+		if (splitter == null) {
+			metrics.recordPatternFallback();
+			metrics.recordMissmatch(skipMissmatch);
+			Arrays.fill(segments, missmatchValue(value, skipMissmatch, transform));
+			return;
+		}
+		try {
+			splitter.bounds(value, segmentIndexes, bounds);
+		} catch (SplitBudgetExceededException ex) {
+			Arrays.fill(segments, budgetExceededValue(value, skipMissmatch, transform, metrics));
+			return;
+		}
+		if (bounds[0] == Splitter.NOT_SPLIT && splitter.isExtract()) {
+			// nothing to extract is a missmatch, the value is not its own group.
+			recordSplit(metrics, bounds[0], skipMissmatch);
+			Arrays.fill(segments, missmatchValue(value, skipMissmatch, transform));
+			return;
+		}
+		recordSplit(metrics, bounds[0], false);
+		for (int i = 0; i < segments.length; i++) {
+			// a value without the split token is returned whole, as its first and final segment.
+			segments[i] = transform.segment(value, bounds[i], segmentIndexes[i]);
+		}
+	}
+
+	/**
+	 * Split one of several attribute values for several claims, with the same rules as
+	 * {@link #splitMultiValue(String, Splitter, int, boolean, SplitMetrics)}.
+	 *
+	 * @param segments Receives the value for each claim, or `null` if it gets nothing.
+	 */
+	static void splitMultiValue(final String value, final Splitter splitter, final int[] segmentIndexes,
+			final boolean skipMissmatch, final ValueTransform transform, final long[] bounds, final String[] segments,
+			final SplitMetrics metrics) {
+		if (value == null || value.isEmpty()) {
+			Arrays.fill(segments, null);
+			return;
+		}
+		metrics.recordValue();
+		if (splitter == null) {
+			metrics.recordPatternFallback();
+			metrics.recordMissmatch(skipMissmatch);
+			Arrays.fill(segments, missmatchValue(value, skipMissmatch, transform));
+			return;
+		}
+		try {
+			splitter.bounds(value, segmentIndexes, bounds);
+		} catch (SplitBudgetExceededException ex) {
+			Arrays.fill(segments, budgetExceededValue(value, skipMissmatch, transform, metrics));
+			return;
+		}
+		recordSplit(metrics, bounds[0], skipMissmatch);
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = bounds[i] == Splitter.NOT_SPLIT
+					? missmatchValue(value, skipMissmatch, transform)
+					: transform.segment(value, bounds[i]);
+		}
+	}
+
+	/**
+	 * Split one of several attribute values.
+	 *
+	 * Unlike {@link #splitValue(String, String, boolean, boolean)}, a value that does not contain the split
+	 * token is a missmatch here: it is skipped when skipMissmatch is set, otherwise it is returned whole.
+	 *
+	 * @param value          The value to split.
+	 * @param splitter       The compiled split token, or `null` if it could not compile.
+	 * @param segmentIndex   The segment to return. 0 is the first, -1 the last.
+	 * @param skipMissmatch  If true then a value that cannot be split is skipped.
+	 * @param metrics        The metrics of the mapper.
+	 * @return The value to add to the claim, or `null` if nothing should be added.
+	 */
+	static String splitMultiValue(final String value, final Splitter splitter, final int segmentIndex, final boolean skipMissmatch,
+			final ValueTransform transform, final SplitMetrics metrics) {
+		if (value == null || value.isEmpty()) {
+			return null;
+		}
+		metrics.recordValue();
+		if (splitter == null) {
+			metrics.recordPatternFallback();
+			metrics.recordMissmatch(skipMissmatch);
+			return missmatchValue(value, skipMissmatch, transform);
+		}
+		final long bounds;
+		try {
+			bounds = splitter.bounds(value, segmentIndex);
+		} catch (SplitBudgetExceededException ex) {
+			return budgetExceededValue(value, skipMissmatch, transform, metrics);
+		}
+		recordSplit(metrics, bounds, skipMissmatch);
+		if (bounds == Splitter.NOT_SPLIT) {
+			// if there is no split, just send what is matched, unless we are skipping the missmatched case.
+			return missmatchValue(value, skipMissmatch, transform);
+		}
+		// null when the segment is empty, then there is nothing to add.
+		return transform.segment(value, bounds);
 	}
 
 	public static ProtocolMapperModel createClaimMapper(String name,
@@ -233,12 +844,86 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 	 */
 	public static final ArrayList<String> splitValues(Collection<String> attributeValue, String splitToken,
 			boolean finalValue, boolean skipMissmatch) {
+		return splitValues(attributeValue, splitToken, SplitMode.REGEX, finalValue, skipMissmatch);
+	}
+
+	/**
+	 * Return a list of values for adding to the token.
+	 *
+	 * @param attributeValue
+	 * @param splitToken
+	 * @param splitMode Whether the split token is a literal or a regular expression.
+	 * @param finalValue
+	 * @param skipMissmatch
+	 * @return
+	 */
+	public static final ArrayList<String> splitValues(Collection<String> attributeValue, String splitToken,
+			SplitMode splitMode, boolean finalValue, boolean skipMissmatch) {
+		return splitValues(attributeValue, splitToken, splitMode,
+				finalValue ? Splitter.FINAL_SEGMENT : Splitter.FIRST_SEGMENT, skipMissmatch);
+	}
+
+	/**
+	 * Return a list of values for adding to the token.
+	 *
+	 * @param attributeValue
+	 * @param splitToken
+	 * @param splitMode Whether the split token is a literal or a regular expression.
+	 * @param segmentIndex The segment to return from each value. 0 is the first, -1 the last, -2 the one before it.
+	 * @param skipMissmatch
+	 * @return
+	 */
+	public static final ArrayList<String> splitValues(Collection<String> attributeValue, String splitToken,
+			SplitMode splitMode, int segmentIndex, boolean skipMissmatch) {
+		return splitValues(attributeValue, splitToken, splitMode, segmentIndex, skipMissmatch, 0, false);
+	}
+
+	/**
+	 * Return a list of values for adding to the token, splitting them in parallel when there are enough.
+	 *
+	 * @param attributeValue
+	 * @param splitToken
+	 * @param splitMode Whether the split token is a literal or a regular expression.
+	 * @param segmentIndex The segment to return from each value. 0 is the first, -1 the last, -2 the one before it.
+	 * @param skipMissmatch
+	 * @param parallelThreshold The number of values from which they are split in parallel, 0 for never.
+	 *                          The values are returned in the same order either way.
+	 * @return
+	 */
+	public static final ArrayList<String> splitValues(Collection<String> attributeValue, String splitToken,
+			SplitMode splitMode, int segmentIndex, boolean skipMissmatch, int parallelThreshold) {
+		return splitValues(attributeValue, splitToken, splitMode, segmentIndex, skipMissmatch, parallelThreshold, false);
+	}
+
+	/**
+	 * Return a list of values for adding to the token.
+	 *
+	 * @param attributeValue
+	 * @param splitToken
+	 * @param splitMode Whether the split token is a literal or a regular expression.
+	 * @param segmentIndex The segment to return from each value. 0 is the first, -1 the last, -2 the one before it.
+	 * @param skipMissmatch
+	 * @param parallelThreshold The number of values from which they are split in parallel, 0 for never.
+	 *                          The values are returned in the same order either way.
+	 * @param distinct If true only the first of equal values is returned, dropped as the values are split.
+	 * @return
+	 */
+	public static final ArrayList<String> splitValues(Collection<String> attributeValue, String splitToken,
+			SplitMode splitMode, int segmentIndex, boolean skipMissmatch, int parallelThreshold, boolean distinct) {
+		if (ParallelSplit.isParallel(attributeValue.size(), parallelThreshold)) {
+			return ParallelSplit.apply(attributeValue.toArray(new String[0]), value -> {
+				String valueReturned = splitValue(value, splitToken, splitMode, segmentIndex, skipMissmatch);
+				return valueReturned != null && !valueReturned.trim().isEmpty() ? valueReturned : null;
+			}, distinct);
+		}
 
 		ArrayList<String> values = new ArrayList<String>();
+		final CompactStringSet seen = distinct ? new CompactStringSet() : null;
 		// for each value in the string, split it and add it to the token.
 		for (String value : attributeValue) {
-				String valueReturned = splitValue(value, splitToken, finalValue, skipMissmatch);
-				if (valueReturned != null && !valueReturned.isEmpty() && !valueReturned.trim().isEmpty()) {
+				String valueReturned = splitValue(value, splitToken, splitMode, segmentIndex, skipMissmatch);
+				if (valueReturned != null && !valueReturned.isEmpty() && !valueReturned.trim().isEmpty()
+						&& (seen == null || seen.add(valueReturned))) {
 					values.add(valueReturned);
 				}
 		}
@@ -258,19 +943,62 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 	 *         null then we don't map anything.
 	 */
 
-	@SuppressWarnings({"PMD.DataflowAnomalyAnalysis", "PMD.AssignmentInOperand"})
 	public static final String splitValue(final String value, final String splitToken, final boolean finalValue, final boolean skipMissmatch) {
+		return splitValue(value, splitToken, SplitMode.REGEX, finalValue, skipMissmatch);
+	}
+
+	/**
+	 * This method will split a string based on the values passed in.
+	 *
+	 * @param value The value to split.
+	 * @param splitToken     The token to split on.
+	 * @param splitMode      Whether the split token is a literal or a regular expression.
+	 * @param finalValue     If true then the last value is returned. If false then
+	 *                       the first value is returned.  When there is only one value, then it is returned.
+	 * @param skipMissmatch  If true then we don't map anything if there is a
+	 *                       missmatch. ie, don't return anything. If false then when it does not match we return the value that was passed in.
+	 * @return A value match, or `null` if there are no matches. If the value is
+	 *         null then we don't map anything.
+	 */
+	public static final String splitValue(final String value, final String splitToken, final SplitMode splitMode,
+			final boolean finalValue, final boolean skipMissmatch) {
+		return splitValue(value, splitToken, splitMode,
+				finalValue ? Splitter.FINAL_SEGMENT : Splitter.FIRST_SEGMENT, skipMissmatch);
+	}
+
+	/**
+	 * This method will split a string based on the values passed in, and return one segment of it.
+	 *
+	 * The value is only scanned as far as it needs to be: for a forward index the scan stops at that segment.
+	 *
+	 * @param value The value to split.
+	 * @param splitToken     The token to split on.
+	 * @param splitMode      Whether the split token is a literal or a regular expression.
+	 * @param segmentIndex   The segment to return, the same as `split(value)[segmentIndex]`. Negative indexes
+	 *                       count back from the end, so -1 is the last segment. When there is only one value,
+	 *                       it is returned for 0 and -1.
+	 * @param skipMissmatch  If true then we don't map anything if there is a
+	 *                       missmatch. ie, don't return anything. If false then when it does not match we return the value that was passed in.
+	 * @return A value match, or `null` if there are no matches or there is no such segment.
+	 */
+	@SuppressWarnings({"PMD.DataflowAnomalyAnalysis", "PMD.AssignmentInOperand"})
+	public static final String splitValue(final String value, final String splitToken, final SplitMode splitMode,
+			final int segmentIndex, final boolean skipMissmatch) {
 		// Return null because the input value is null.
 		// NOTE Space might be a valid value. so it is not || value.trim().isEmpty()
 		if (value == null || value.isEmpty()) {
-			LOGGER.debug("[splitValue] value is null or empty");
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("[splitValue] value is null or empty");
+			}
 			return null;
 		}
 		// If the split token is null, then there is nothing to split
 		// NOTE: Space might be a valid split token, so it is not trimmed.
 		if (splitToken == null || splitToken.isEmpty()) {
 			// if there is no split, just send what is matched.
-			LOGGER.debug("[splitValue] splitToken is null or empty");
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("[splitValue] splitToken is null or empty");
+			}
 			if (!skipMissmatch) {
 				return (value != null && !value.isEmpty()) ? value : null;
 			} else {
@@ -280,52 +1008,103 @@ public class UserAttributeSplitterMapper extends AbstractOIDCProtocolMapper
 			}
 		}
 		// We can process the value, so we try to split it.
+		Splitter splitter;
 		try {
-			String[] split;
-			// if it has at least one split, we can continue.
-			if ((split = value.split(splitToken)).length >= MIN_ATTRIBUTE_NUM) {
-				if (finalValue) {
-					String returnValue = split[split.length - 1];
-					return (returnValue != null && !returnValue.isEmpty()) ? returnValue : null;
-				} else {
-					String returnValue = split[0];
-					return (returnValue != null && !returnValue.isEmpty()) ? returnValue : null;
-				}
-			} else {
-				if (split.length == MIN_ATTRIBUTE_NUM)
-				{
-					LOGGER.debug("value=: "+ value + "  split=" + split[0]);
-					if (!finalValue) {
-						LOGGER.trace("Length 1: " + split[0]);
-						return split[0];
-					}
-					else
-					{
-						// There is no final value, so return null.
-						return null;
-					}
-				}
-
-				// if there is no split, just send what is matched.
-				if (!skipMissmatch) {
-					return (value != null && value.isEmpty()) ? value : null;
-				} else {
-					// we are skipping the missmatched case, and returning nothing.
-					// we don't add anything.
-					return null;
-				}
-			}
+			splitter = Splitter.compile(splitToken, splitMode);
 		} catch (java.util.regex.PatternSyntaxException ex) {
 			// if there is an error, then we don't map anything.
-			// Log the warning to the app server as an error message.
-			LOGGER.warn("[splitValue] - Split Token Cannot Compile in OIDC Mapper. splitToken=" + splitToken);
-			if (!skipMissmatch) {
-				return (value != null && !value.isEmpty()) ? value : null;
-			} else {
-				// we are skipping the missmatched case, and returning nothing.
-				// we don't add anything.
-				return null;
+			// The failure is remembered and logged once by SplitPatternCache, so this is cheap after the first time.
+			return missmatchValue(value, skipMissmatch);
+		}
+		// Only the wanted segment is cut out of the value.
+		try {
+			if (splitter.isExtract()) {
+				final long bounds = splitter.bounds(value, segmentIndex);
+				return bounds == Splitter.NOT_SPLIT ? missmatchValue(value, skipMissmatch) : Splitter.segment(value, bounds);
 			}
+			return splitter.select(value, segmentIndex);
+		} catch (SplitBudgetExceededException ex) {
+			// counted, and only logged the first time, as a bad token would log for every value.
+			SplitPatternCache.shared().recordBudgetExceeded(splitToken);
+			return missmatchValue(value, skipMissmatch);
+		}
+	}
+
+	/**
+	 * Split a value with an already compiled split token.
+	 *
+	 * @param value          The value to split, must not be null.
+	 * @param splitter       The compiled split token, or `null` if it could not compile.
+	 * @param segmentIndex   The segment to return. 0 is the first, -1 the last.
+	 * @param skipMissmatch  If true then nothing is returned when the split token could not compile.
+	 * @param metrics        The metrics of the mapper.
+	 * @return A value match, or `null` if there are no matches.
+	 */
+	static String splitValue(final String value, final Splitter splitter, final int segmentIndex, final boolean skipMissmatch,
+			final ValueTransform transform, final SplitMetrics metrics) {
+		if (value == null || value.isEmpty()) {
+			return null;
+		}
+		metrics.recordValue();
+		if (splitter == null) {
+			metrics.recordPatternFallback();
+			metrics.recordMissmatch(skipMissmatch);
+			return missmatchValue(value, skipMissmatch, transform);
+		}
+		// Only the wanted segment is cut out of the value. It is null when that segment is empty,
+		// or the value is nothing but split tokens.
+		final long bounds;
+		try {
+			bounds = splitter.bounds(value, segmentIndex);
+		} catch (SplitBudgetExceededException ex) {
+			return budgetExceededValue(value, skipMissmatch, transform, metrics);
+		}
+		if (bounds == Splitter.NOT_SPLIT && splitter.isExtract()) {
+			// nothing to extract is a missmatch, the value is not its own group.
+			recordSplit(metrics, bounds, skipMissmatch);
+			return missmatchValue(value, skipMissmatch, transform);
+		}
+		// a single value without the split token goes in whole, so it is never skipped.
+		recordSplit(metrics, bounds, false);
+		return transform.segment(value, bounds, segmentIndex);
+	}
+
+	/**
+	 * @return The value to return when the split token ran out of its regex step budget, the same as a missmatch.
+	 */
+	private static String budgetExceededValue(final String value, final boolean skipMissmatch, final ValueTransform transform,
+			final SplitMetrics metrics) {
+		metrics.recordBudgetExceeded();
+		metrics.recordMissmatch(skipMissmatch);
+		return missmatchValue(value, skipMissmatch, transform);
+	}
+
+	/**
+	 * Count a value as a split hit, or as a missmatch if it did not contain the split token.
+	 */
+	private static void recordSplit(final SplitMetrics metrics, final long bounds, final boolean skipMissmatch) {
+		if (bounds == Splitter.NOT_SPLIT) {
+			metrics.recordMissmatch(skipMissmatch);
+		} else {
+			metrics.recordSplitHit();
+		}
+	}
+
+	/**
+	 * @return The value transformed, or `null` when skipping missmatches or the transforms left nothing.
+	 */
+	private static String missmatchValue(final String value, final boolean skipMissmatch, final ValueTransform transform) {
+		final String missmatch = missmatchValue(value, skipMissmatch);
+		return missmatch == null ? null : transform.apply(missmatch);
+	}
+
+	private static String missmatchValue(final String value, final boolean skipMissmatch) {
+		if (!skipMissmatch) {
+			return (value != null && !value.isEmpty()) ? value : null;
+		} else {
+			// we are skipping the missmatched case, and returning nothing.
+			// we don't add anything.
+			return null;
 		}
 	}
 
@@ -0,0 +1,261 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The ordered {@link UserAttributeSplitterMapper#TRANSFORMS} of a mapper, compiled to run on the bounds of a segment.
+ *
+ * Trim, prefix and suffix stripping and the maximum length only move the start and end of the segment
+ * within the attribute value, so the segment is cut out once, after every step. A case change is applied to
+ * that cut, and costs a second string only when the case actually changes. The maximum length is checked again
+ * after it, as a case change can make a value longer, EG: `ß` is `SS` in upper case.
+ *
+ * With a {@link SegmentInternPool}, the cut is taken from the pool when it has been seen before.
+ */
+public final class ValueTransform {
+
+	private static final Logger LOGGER = Logger.getLogger(ValueTransform.class);
+
+	static final String TRIM = "trim";
+	static final String LOWERCASE = "lowercase";
+	static final String UPPERCASE = "uppercase";
+	static final String STRIP_PREFIX = "strip-prefix";
+	static final String STRIP_SUFFIX = "strip-suffix";
+	static final String MAX_LENGTH = "max-length";
+
+	/**
+	 * No transforms, the default. Segments are cut out exactly as {@link Splitter#segment(String, long)} does.
+	 */
+	public static final ValueTransform NONE = new ValueTransform(new Step[0], false, false, Integer.MAX_VALUE, null);
+
+	private final Step[] steps;
+	// the case of the result is set by the last case transform, neither keeps the case of the value.
+	private final boolean lowerCase;
+	private final boolean upperCase;
+	// the smallest max-length, which the result must still fit after its case changes.
+	private final int maxLength;
+	// null when segments are cut out of the value every time.
+	private final SegmentInternPool pool;
+
+	private ValueTransform(final Step[] steps, final boolean lowerCase, final boolean upperCase,
+			final int maxLength, final SegmentInternPool pool) {
+		this.steps = steps;
+		this.lowerCase = lowerCase;
+		this.upperCase = upperCase;
+		this.maxLength = maxLength;
+		this.pool = pool;
+	}
+
+	/**
+	 * Compile the transforms of a mapper. An entry that is not a known transform is logged and ignored.
+	 *
+	 * @param configValue The transforms in order, separated by `##`. EG: `trim##lowercase##strip-prefix=role_`.
+	 * @return The compiled transforms, {@link #NONE} if there are none.
+	 */
+	static ValueTransform fromConfig(final String configValue) {
+		if (configValue == null || configValue.trim().isEmpty()) {
+			return NONE;
+		}
+		final List<Step> steps = new ArrayList<Step>();
+		String caseTransform = null;
+		int maxLength = Integer.MAX_VALUE;
+		for (String entry : configValue.split(Constants.CFG_DELIMITER)) {
+			final int separator = entry.indexOf('=');
+			final String name = (separator < 0 ? entry : entry.substring(0, separator)).trim().toLowerCase(Locale.ROOT);
+			// the argument is not trimmed, so a prefix or suffix can end in a space.
+			final String argument = separator < 0 ? null : entry.substring(separator + 1);
+			if (name.isEmpty()) {
+				continue;
+			}
+			if (LOWERCASE.equals(name) || UPPERCASE.equals(name)) {
+				caseTransform = name;
+				continue;
+			}
+			final Step step = stepOf(name, argument, caseTransform);
+			if (step == null) {
+				LOGGER.warnf("[ValueTransform] - Ignoring transform, expected trim, lowercase, uppercase, strip-prefix=<text>, strip-suffix=<text> or max-length=<number>. entry=%s", entry);
+			} else {
+				steps.add(step);
+				if (step.kind == Step.MAX_LENGTH) {
+					maxLength = Math.min(maxLength, step.length);
+				}
+			}
+		}
+		if (steps.isEmpty() && caseTransform == null) {
+			return NONE;
+		}
+		return new ValueTransform(steps.toArray(new Step[0]), LOWERCASE.equals(caseTransform),
+				UPPERCASE.equals(caseTransform), maxLength, null);
+	}
+
+	/**
+	 * @return The same transforms, taking the segments they return from the pool.
+	 */
+	ValueTransform interning(final SegmentInternPool segmentPool) {
+		return new ValueTransform(steps, lowerCase, upperCase, maxLength, segmentPool);
+	}
+
+	/**
+	 * @param caseTransform The case transform before this step, if any, that the text to strip is matched after.
+	 */
+	private static Step stepOf(final String name, final String argument, final String caseTransform) {
+		if (TRIM.equals(name) && argument == null) {
+			return new Step(Step.TRIM, null, 0, false);
+		}
+		if ((STRIP_PREFIX.equals(name) || STRIP_SUFFIX.equals(name)) && argument != null && !argument.isEmpty()) {
+			final int kind = STRIP_PREFIX.equals(name) ? Step.STRIP_PREFIX : Step.STRIP_SUFFIX;
+			if (caseTransform == null) {
+				return new Step(kind, argument, 0, false);
+			}
+			final String folded = UPPERCASE.equals(caseTransform)
+					? argument.toUpperCase(Locale.ROOT)
+					: argument.toLowerCase(Locale.ROOT);
+			// after the case change a text in the other case can never be found, so nothing is stripped.
+			return new Step(folded.equals(argument) ? kind : Step.NOTHING, argument, 0, true);
+		}
+		if (MAX_LENGTH.equals(name) && argument != null) {
+			try {
+				final int maxLength = Integer.parseInt(argument.trim());
+				return maxLength <= 0 ? null : new Step(Step.MAX_LENGTH, null, maxLength, false);
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return True if this is {@link #NONE}.
+	 */
+	public boolean isNone() {
+		return this == NONE;
+	}
+
+	/**
+	 * Transform a segment found by {@link Splitter#bounds}, in place of {@link Splitter#segment(String, long)}.
+	 *
+	 * @return The transformed segment, the whole value transformed if it was {@link Splitter#NOT_SPLIT},
+	 *         or `null` if there is no segment or the transforms left nothing.
+	 */
+	String segment(final String value, final long bounds) {
+		if (isNone() || bounds == Splitter.NO_SEGMENT) {
+			return Splitter.segment(value, bounds);
+		}
+		if (bounds == Splitter.NOT_SPLIT) {
+			return apply(value, 0, value.length());
+		}
+		return apply(value, Splitter.start(bounds), Splitter.end(bounds));
+	}
+
+	/**
+	 * The same as {@link Splitter#segment(String, long, int)}, transformed.
+	 */
+	String segment(final String value, final long bounds, final int segmentIndex) {
+		if (bounds == Splitter.NOT_SPLIT && !Splitter.isFirstOrFinal(segmentIndex)) {
+			return null;
+		}
+		return segment(value, bounds);
+	}
+
+	/**
+	 * @return The whole value transformed, or `null` if the transforms left nothing.
+	 */
+	String apply(final String value) {
+		return isNone() ? value : apply(value, 0, value.length());
+	}
+
+	/**
+	 * Run the transforms on `value[start, end)`, cutting out the result once.
+	 */
+	@SuppressWarnings({"PMD.CompareObjectsWithEquals", "PMD.UseEqualsToCompareStrings"})
+	String apply(final String value, final int start, final int end) {
+		int from = start;
+		int to = end;
+		for (Step step : steps) {
+			switch (step.kind) {
+				case Step.TRIM:
+					while (from < to && value.charAt(from) <= ' ') {
+						from++;
+					}
+					while (to > from && value.charAt(to - 1) <= ' ') {
+						to--;
+					}
+					break;
+				case Step.STRIP_PREFIX:
+					if (to - from >= step.text.length()
+							&& value.regionMatches(step.ignoreCase, from, step.text, 0, step.text.length())) {
+						from += step.text.length();
+					}
+					break;
+				case Step.STRIP_SUFFIX:
+					if (to - from >= step.text.length()
+							&& value.regionMatches(step.ignoreCase, to - step.text.length(), step.text, 0, step.text.length())) {
+						to -= step.text.length();
+					}
+					break;
+				case Step.MAX_LENGTH:
+					if (to - from > step.length) {
+						to = limit(value, from + step.length);
+					}
+					break;
+				default:
+					break;
+			}
+		}
+		if (from >= to) {
+			return null;
+		}
+		final String cut = from == 0 && to == value.length() ? value : cut(value, from, to);
+		// both return the same string when its case does not change.
+		String cased;
+		if (lowerCase) {
+			cased = cut.toLowerCase(Locale.ROOT);
+		} else {
+			cased = upperCase ? cut.toUpperCase(Locale.ROOT) : cut;
+		}
+		if (cased.length() > maxLength) {
+			// the case change made the value longer.
+			cased = cased.substring(0, limit(cased, maxLength));
+		}
+		// only a changed case is a new string, which the pool swaps for the one seen before.
+		return cased == cut || pool == null ? cased : pool.intern(cased);
+	}
+
+	/**
+	 * @return The end, moved back by one so it never keeps half of a surrogate pair.
+	 */
+	private static int limit(final String value, final int end) {
+		return Character.isHighSurrogate(value.charAt(end - 1)) && Character.isLowSurrogate(value.charAt(end)) ? end - 1 : end;
+	}
+
+	private String cut(final String value, final int from, final int to) {
+		return pool == null ? value.substring(from, to) : pool.intern(value, from, to);
+	}
+
+	private static final class Step {
+
+		static final int NOTHING = 0;
+		static final int TRIM = 1;
+		static final int STRIP_PREFIX = 2;
+		static final int STRIP_SUFFIX = 3;
+		static final int MAX_LENGTH = 4;
+
+		private final int kind;
+		private final String text;
+		private final int length;
+		// a strip after a case change matches the text whatever the case of the value.
+		private final boolean ignoreCase;
+
+		Step(final int kind, final String text, final int length, final boolean ignoreCase) {
+			this.kind = kind;
+			this.text = text;
+			this.length = length;
+			this.ignoreCase = ignoreCase;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Fails when a call on the per-token path allocates more than its budget, so an allocation regression breaks
+ * the build rather than waiting for someone to read the benchmarks.
+ *
+ * The bytes are counted by the JVM for the current thread, over many calls after a warm up so the JIT has
+ * compiled the path. The budgets are in bytes per call, in the tables below, with headroom over what the
+ * path allocates today. Lower a budget when a change makes a path cheaper, and only raise one on purpose.
+ *
+ * A token is mapped through `transformAccessToken`, as `SetClaimBenchmark` does, so the budget covers the plan
+ * cache lookup and the request key the claims are shared under as well as the split. The user, user session and
+ * Keycloak session are proxies rather than Mockito mocks, which allocate far more per call than the mapper does,
+ * so only a proxy's argument array is in the budget besides the mapper. The token is reused with its claims
+ * cleared, so the budget covers the claim and not the token.
+ */
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class AllocationBudgetTest {
+
+	private static final String MAPPER_ID = "allocation-budget-test";
+	private static final int WARM_UP_CALLS = 20_000;
+	private static final int MEASURED_CALLS = 20_000;
+
+	private static com.sun.management.ThreadMXBean threads;
+
+	@BeforeAll
+	public static void setUp() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "no per thread allocation counter in this JVM");
+		threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported(), "no per thread allocation counter in this JVM");
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		SplitPlanCache.shared().invalidate(MAPPER_ID);
+		SplitMetricsRegistry.shared().remove(MAPPER_ID);
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@CsvSource({
+			// name,                  mode,    token,  final, skip,  multi, values,                             budget
+			"literal first,           literal, @,      false, false, false, alice@example.com,                  1152",
+			"literal final,           literal, @,      true,  false, false, alice@example.com,                  1152",
+			"regex first,             regex,   '[@.]', false, false, false, alice@example.com,                  1344",
+			"regex final,             regex,   '[@.]', true,  false, false, alice@example.com,                  1344",
+			"missmatch kept,          literal, @,      true,  false, false, alice,                              1024",
+			"missmatch skipped,       literal, @,      true,  true,  true,  alice|bob,                          1024",
+			"multi value first,       literal, @,      false, false, true,  alice@example.com|bob@other.com|c@d, 1344",
+			"multi value final regex, regex,   '[@.]', true,  false, true,  alice@example.com|bob@other.com|c@d, 2112"
+	})
+	public void shouldMapTokenWithinBudget(final String name, final String mode, final String token,
+			final boolean finalValue, final boolean skipMissmatch, final boolean multivalued, final String values,
+			final long budget) {
+		final Map<String, String> config = new HashMap<>();
+		config.put("access.token.claim", "true");
+		config.put("claim.name", "claim");
+		config.put("user.attribute", "Test");
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, token);
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, mode);
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, String.valueOf(finalValue));
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, String.valueOf(skipMissmatch));
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, String.valueOf(multivalued));
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setName(MAPPER_ID);
+		mappingModel.setConfig(config);
+		final List<String> attributeValue = Arrays.asList(values.split("\\|"));
+		final UserModel user = fake(UserModel.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getId":
+					return "user";
+				case "getAttributeStream":
+					return attributeValue.stream();
+				case "getGroupsStream":
+					return Stream.empty();
+				default:
+					throw unsupported(method);
+			}
+		});
+		final UserSessionModel userSession = fake(UserSessionModel.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getUser":
+					return user;
+				default:
+					throw unsupported(method);
+			}
+		});
+		// never has the claims of an earlier token, so every call maps them as the first token of a request does.
+		final KeycloakSession keycloakSession = fake(KeycloakSession.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getAttribute":
+				case "setAttribute":
+					return null;
+				default:
+					throw unsupported(method);
+			}
+		});
+		final UserAttributeSplitterMapper mapper = new UserAttributeSplitterMapper();
+		final AccessToken accessToken = new AccessToken();
+
+		final long bytes = bytesPerCall(() -> {
+			accessToken.getOtherClaims().clear();
+			return mapper.transformAccessToken(accessToken, mappingModel, keycloakSession, userSession, null);
+		});
+
+		assertThat(bytes).as("bytes per token for %s", name).isLessThanOrEqualTo(budget);
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@CsvSource({
+			// name,          mode,    token,  final, skip,  value,             budget
+			"literal first,   literal, @,      false, false, alice@example.com, 128",
+			"literal final,   literal, @,      true,  false, alice@example.com, 128",
+			"regex final,     regex,   '[@.]', true,  false, alice@example.com, 512",
+			"missmatch,       literal, @,      true,  true,  alice,             64"
+	})
+	public void shouldSplitValueWithinBudget(final String name, final String mode, final String token,
+			final boolean finalValue, final boolean skipMissmatch, final String value, final long budget) {
+		final SplitMode splitMode = SplitMode.fromConfig(mode);
+
+		final long bytes = bytesPerCall(() -> UserAttributeSplitterMapper.splitValue(value, token, splitMode, finalValue,
+				skipMissmatch));
+
+		assertThat(bytes).as("bytes per splitValue for %s", name).isLessThanOrEqualTo(budget);
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@CsvSource({
+			// name,        mode,    token,  final, values,                                budget
+			"literal final, literal, @,      true,  alice@example.com|bob@other.com|c@d,  512",
+			"regex first,   regex,   '[@.]', false, alice@example.com|bob@other.com|c@d,  1536"
+	})
+	public void shouldSplitValuesWithinBudget(final String name, final String mode, final String token,
+			final boolean finalValue, final String values, final long budget) {
+		final SplitMode splitMode = SplitMode.fromConfig(mode);
+		final List<String> attributeValue = Arrays.asList(values.split("\\|"));
+
+		final long bytes = bytesPerCall(() -> UserAttributeSplitterMapper.splitValues(attributeValue, token, splitMode,
+				finalValue, false));
+
+		assertThat(bytes).as("bytes per splitValues for %s", name).isLessThanOrEqualTo(budget);
+	}
+
+	@SuppressWarnings("PMD.UseProperClassLoader")
+	private static <T> T fake(final Class<T> type, final InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+	}
+
+	private static UnsupportedOperationException unsupported(final Method method) {
+		return new UnsupportedOperationException("not faked: " + method);
+	}
+
+	/**
+	 * @return The bytes the current thread allocates on average in one call, after a warm up.
+	 */
+	private static long bytesPerCall(final Supplier<Object> call) {
+		final long threadId = Thread.currentThread().getId();
+		// kept so the JIT cannot drop the call as unused.
+		int sink = 0;
+		for (int i = 0; i < WARM_UP_CALLS; i++) {
+			sink += System.identityHashCode(call.get()) & 1;
+		}
+		final long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_CALLS; i++) {
+			sink += System.identityHashCode(call.get()) & 1;
+		}
+		final long bytes = (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_CALLS;
+		assertThat(sink).isNotNegative();
+		return bytes;
+	}
+}
@@ -0,0 +1,45 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClaimBudgetTest {
+
+	@Test
+	public void shouldCountUtf8Bytes() {
+		for (String value : Arrays.asList("", "ascii", "café", "€100", "😀 smile", "lone \ud83d high")) {
+			assertThat(ClaimBudget.utf8Length(value)).as(value)
+					.isEqualTo(value.getBytes(StandardCharsets.UTF_8).length);
+		}
+	}
+
+	@Test
+	public void shouldBeUnlimitedByDefault() {
+		assertThat(ClaimBudget.of(0, 0)).isSameAs(ClaimBudget.UNLIMITED);
+		assertThat(ClaimBudget.of(-1, 0).isByteLimited()).isFalse();
+		assertThat(ClaimBudget.UNLIMITED.bytesOf("value")).isZero();
+	}
+
+	@Test
+	public void shouldTruncateToMaxValues() {
+		final List<String> values = new ArrayList<String>(Arrays.asList("a", "b", "c"));
+
+		assertThat(ClaimBudget.of(2, 0).truncate(values)).isTrue();
+		assertThat(values).containsExactly("a", "b");
+		assertThat(ClaimBudget.of(2, 0).truncate(values)).isFalse();
+	}
+
+	@Test
+	public void shouldTruncateBeforeValueThatDoesNotFit() {
+		final List<String> values = new ArrayList<String>(Arrays.asList("ab", "cé", "d"));
+
+		assertThat(ClaimBudget.of(0, 4).truncate(values)).isTrue();
+		assertThat(values).containsExactly("ab");
+	}
+}
@@ -0,0 +1,129 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.protocol.ProtocolMapperUtils;
+import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
+import org.keycloak.representations.AccessToken;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class ClaimWriterTest {
+
+	@ParameterizedTest
+	@CsvSource({
+			"claim, , false",
+			"org.tenant.id, , false",
+			"'a\\.b', , false",
+			"'org\\.example.tenant\\.id', String, false",
+			"org.tenant.id, , true",
+			"claim, String, true",
+			"claim, boolean, false",
+			"org.flags, boolean, true",
+			"claim, long, false",
+			"claim, int, true",
+			"claim, JSON, false",
+			"org.json, JSON, true",
+			"claim, unknown, true"
+	})
+	public void shouldWriteSameClaimsAsKeycloak(final String claimName, final String jsonType, final boolean multivalued) {
+		final ProtocolMapperModel claimModel = givenClaimModel(claimName, jsonType, multivalued);
+		final Object value = valueOf(jsonType);
+		final List<Object> values = Arrays.asList(value, value);
+		final List<Object> tokenValues = Arrays.<Object>asList(value, Collections.singletonList(value), values,
+				new LinkedHashSet<Object>(values), Collections.emptyList(), null);
+
+		for (Object tokenValue : tokenValues) {
+			assertThat(written(claimModel, tokenValue)).as(String.valueOf(tokenValue))
+					.isEqualTo(mapped(claimModel, tokenValue));
+		}
+	}
+
+	@Test
+	public void shouldKeepOtherNestedClaims() {
+		final ProtocolMapperModel claimModel = givenClaimModel("org.tenant.id", null, false);
+		final AccessToken token = new AccessToken();
+		final Map<String, Object> org = new HashMap<String, Object>();
+		org.put("name", "example");
+		token.getOtherClaims().put("org", org);
+
+		new ClaimWriter(claimModel, claimModel.getConfig()).write(token, "tenant");
+
+		assertThat(token.getOtherClaims().get("org")).isSameAs(org);
+		assertThat(org).containsEntry("name", "example").containsEntry("tenant", Collections.singletonMap("id", "tenant"));
+	}
+
+	@Test
+	public void shouldGiveEachTokenItsOwnList() {
+		final ProtocolMapperModel claimModel = givenClaimModel("claim", null, true);
+		final ClaimWriter writer = new ClaimWriter(claimModel, claimModel.getConfig());
+		final List<String> values = new ArrayList<String>(Arrays.asList("a", "b"));
+		final AccessToken first = new AccessToken();
+		final AccessToken second = new AccessToken();
+
+		writer.write(first, values);
+		writer.write(second, values);
+
+		assertThat(first.getOtherClaims().get("claim")).isEqualTo(values).isNotSameAs(values)
+				.isNotSameAs(second.getOtherClaims().get("claim"));
+	}
+
+	@Test
+	public void shouldLeaveOutClaimWithoutName() {
+		final ProtocolMapperModel claimModel = givenClaimModel(null, null, false);
+		final AccessToken token = new AccessToken();
+
+		new ClaimWriter(claimModel, claimModel.getConfig()).write(token, "value");
+
+		assertThat(token.getOtherClaims()).isEmpty();
+	}
+
+	private static Object valueOf(final String jsonType) {
+		switch (jsonType == null ? "" : jsonType) {
+			case "boolean":
+				return "true";
+			case "long":
+			case "int":
+				return "42";
+			case "JSON":
+				return "{\"tenant\":\"example\"}";
+			default:
+				return "example.com";
+		}
+	}
+
+	private static Map<String, Object> written(final ProtocolMapperModel claimModel, final Object value) {
+		final AccessToken token = new AccessToken();
+		new ClaimWriter(claimModel, claimModel.getConfig()).write(token, value);
+		return token.getOtherClaims();
+	}
+
+	private static Map<String, Object> mapped(final ProtocolMapperModel claimModel, final Object value) {
+		final AccessToken token = new AccessToken();
+		OIDCAttributeMapperHelper.mapClaim(token, claimModel, value);
+		return token.getOtherClaims();
+	}
+
+	private static ProtocolMapperModel givenClaimModel(final String claimName, final String jsonType,
+			final boolean multivalued) {
+		final Map<String, String> config = new HashMap<>();
+		config.put(OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME, claimName);
+		config.put(OIDCAttributeMapperHelper.JSON_TYPE, jsonType);
+		config.put(ProtocolMapperUtils.MULTIVALUED, String.valueOf(multivalued));
+		final ProtocolMapperModel claimModel = new ProtocolMapperModel();
+		claimModel.setName("claim-writer-test");
+		claimModel.setConfig(config);
+		return claimModel;
+	}
+}
@@ -0,0 +1,33 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactStringSetTest {
+
+	@Test
+	public void shouldAddEachValueOnce() {
+		final CompactStringSet set = new CompactStringSet();
+
+		assertThat(set.add("a")).isTrue();
+		assertThat(set.add("b")).isTrue();
+		assertThat(set.add("a")).isFalse();
+		assertThat(set.size()).isEqualTo(2);
+	}
+
+	@Test
+	public void shouldMatchHashSetWhileGrowing() {
+		final CompactStringSet set = new CompactStringSet();
+		final Set<String> expected = new HashSet<String>();
+		for (int i = 0; i < 10_000; i++) {
+			final String value = "tenant" + (i * 31 % 1500);
+			assertThat(set.add(value)).isEqualTo(expected.add(value));
+		}
+
+		assertThat(set.size()).isEqualTo(expected.size());
+	}
+}
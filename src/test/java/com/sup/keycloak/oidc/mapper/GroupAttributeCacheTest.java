@@ -0,0 +1,211 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.ProtocolMapperUtils;
+import org.keycloak.provider.ProviderEventListener;
+import org.keycloak.representations.AccessToken;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class GroupAttributeCacheTest {
+
+	private static final String MAPPER_ID = "group-attribute-cache-test";
+	private static final String REALM_ID = "realm";
+	private static final String ATTRIBUTE = "Test";
+	private static final long TTL = TimeUnit.MINUTES.toNanos(1);
+
+	private final AtomicLong clock = new AtomicLong();
+	private final GroupAttributeCache cache = new GroupAttributeCache(100, clock::get);
+
+	@AfterEach
+	public void tearDown() {
+		GroupAttributeCache.shared().clear();
+		SplitPlanCache.shared().invalidate(MAPPER_ID);
+		SplitMetricsRegistry.shared().remove(MAPPER_ID);
+	}
+
+	@Test
+	public void shouldUnregisterGroupListenerOnClose() {
+		final KeycloakSessionFactory factory = Mockito.mock(KeycloakSessionFactory.class);
+		final UserAttributeSplitterMapper mapper = new UserAttributeSplitterMapper();
+		final ArgumentCaptor<ProviderEventListener> listener = ArgumentCaptor.forClass(ProviderEventListener.class);
+
+		mapper.postInit(factory);
+		mapper.close();
+
+		verify(factory).register(listener.capture());
+		verify(factory).unregister(listener.getValue());
+	}
+
+	@Test
+	public void shouldInheritFromNearestAncestorOnce() {
+		final GroupModel root = givenGroup("root", null, "a@root");
+		final GroupModel middle = givenGroup("middle", root);
+		final GroupModel leaf = givenGroup("leaf", middle);
+
+		assertThat(cache.resolve(REALM_ID, leaf, ATTRIBUTE, TTL)).containsExactly("a@root");
+		assertThat(cache.resolve(REALM_ID, leaf, ATTRIBUTE, TTL)).containsExactly("a@root");
+
+		verify(root, times(1)).getAttributeStream(ATTRIBUTE);
+	}
+
+	@Test
+	public void shouldMatchKeycloakAggregation() {
+		final GroupModel root = givenGroup("root", null, "a@root");
+		final GroupModel child = givenGroup("child", root, "b@child", "a@root");
+		final GroupModel bare = givenGroup("bare", null);
+		final UserModel user = givenUser(new String[] {"c@user"}, givenGroup("leaf", child), root, bare);
+
+		assertThat(cache.resolveAggregated(REALM_ID, user, ATTRIBUTE, TTL))
+				.isEqualTo(KeycloakModelUtils.resolveAttribute(user, ATTRIBUTE, true))
+				.containsExactlyInAnyOrder("a@root", "b@child", "c@user");
+		assertThat(cache.resolveAggregated(REALM_ID, givenUser(new String[0], bare), ATTRIBUTE, TTL)).isEmpty();
+	}
+
+	@Test
+	public void shouldWalkAgainOnceExpired() {
+		final GroupModel root = givenGroup("root", null, "a@root");
+
+		cache.resolve(REALM_ID, root, ATTRIBUTE, TTL);
+		clock.addAndGet(TTL - 1);
+		cache.resolve(REALM_ID, root, ATTRIBUTE, TTL);
+		clock.addAndGet(1);
+		cache.resolve(REALM_ID, root, ATTRIBUTE, TTL);
+
+		verify(root, times(2)).getAttributeStream(ATTRIBUTE);
+	}
+
+	@Test
+	public void shouldForgetRemovedGroupsAndRealms() {
+		final GroupModel root = givenGroup("root", null, "a@root");
+		final GroupModel other = givenGroup("other", null, "b@other");
+		cache.resolve(REALM_ID, root, ATTRIBUTE, TTL);
+		cache.resolve(REALM_ID, other, ATTRIBUTE, TTL);
+		cache.resolve("other-realm", other, ATTRIBUTE, TTL);
+
+		final GroupModel.GroupRemovedEvent groupRemoved = Mockito.mock(GroupModel.GroupRemovedEvent.class);
+		when(groupRemoved.getGroup()).thenReturn(root);
+		cache.onEvent(groupRemoved);
+		assertThat(cache.size()).isEqualTo(2);
+
+		final RealmModel realm = Mockito.mock(RealmModel.class);
+		when(realm.getId()).thenReturn(REALM_ID);
+		final RealmModel.RealmRemovedEvent realmRemoved = Mockito.mock(RealmModel.RealmRemovedEvent.class);
+		when(realmRemoved.getRealm()).thenReturn(realm);
+		cache.onEvent(realmRemoved);
+		assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldForgetRealmWhenGroupIsEdited() {
+		final GroupCacheEventListener listener = new GroupCacheEventListener(cache);
+		final GroupModel other = givenGroup("other", null, "b@other");
+		cache.resolve(REALM_ID, givenGroup("root", null, "a@root"), ATTRIBUTE, TTL);
+		cache.resolve(REALM_ID, other, ATTRIBUTE, TTL);
+		cache.resolve("other-realm", other, ATTRIBUTE, TTL);
+
+		listener.onEvent(givenAdminEvent(ResourceType.USER, OperationType.UPDATE), false);
+		assertThat(cache.size()).isEqualTo(3);
+
+		listener.onEvent(givenAdminEvent(ResourceType.GROUP, OperationType.UPDATE), false);
+		assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldStayBounded() {
+		for (int i = 0; i < 250; i++) {
+			cache.resolve(REALM_ID, givenGroup("group" + i, null, "value"), ATTRIBUTE, TTL);
+		}
+
+		assertThat(cache.size()).isLessThanOrEqualTo(100);
+	}
+
+	@Test
+	public void shouldKeepGroupsInUseWhenFull() {
+		final GroupModel popular = givenGroup("popular", null, "a@popular");
+		cache.resolve(REALM_ID, popular, ATTRIBUTE, TTL);
+		for (int i = 0; i < 250; i++) {
+			cache.resolve(REALM_ID, popular, ATTRIBUTE, TTL);
+			cache.resolve(REALM_ID, givenGroup("group" + i, null, "value"), ATTRIBUTE, TTL);
+		}
+
+		assertThat(cache.size()).isEqualTo(100);
+		verify(popular, times(1)).getAttributeStream(ATTRIBUTE);
+	}
+
+	@Test
+	public void shouldMapCachedGroupValues() {
+		final GroupModel root = givenGroup("root", null, "a@root");
+		final UserModel user = givenUser(new String[0], givenGroup("leaf", root));
+		final UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		when(userSession.getUser()).thenReturn(user);
+		final Map<String, String> config = new HashMap<>();
+		config.put("access.token.claim", "true");
+		config.put("claim.name", "claim");
+		config.put("user.attribute", ATTRIBUTE);
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(ProtocolMapperUtils.AGGREGATE_ATTRS, "true");
+		config.put(UserAttributeSplitterMapper.GROUP_CACHE_TTL, "60");
+
+		assertThat(transformAccessToken(userSession, config).getOtherClaims().get("claim")).isEqualTo("a");
+		assertThat(transformAccessToken(userSession, config).getOtherClaims().get("claim")).isEqualTo("a");
+
+		verify(root, times(1)).getAttributeStream(ATTRIBUTE);
+	}
+
+	private static GroupModel givenGroup(String id, GroupModel parent, String... attributeValues) {
+		final String parentId = parent == null ? null : parent.getId();
+		final GroupModel group = Mockito.mock(GroupModel.class);
+		when(group.getId()).thenReturn(id);
+		when(group.getAttributeStream(ATTRIBUTE)).thenAnswer(invocation -> Stream.of(attributeValues));
+		when(group.getParent()).thenReturn(parent);
+		when(group.getParentId()).thenReturn(parentId);
+		return group;
+	}
+
+	private static UserModel givenUser(String[] attributeValues, GroupModel... groups) {
+		final UserModel user = Mockito.mock(UserModel.class);
+		when(user.getAttributeStream(ATTRIBUTE)).thenAnswer(invocation -> Stream.of(attributeValues));
+		when(user.getGroupsStream()).thenAnswer(invocation -> Arrays.stream(groups));
+		return user;
+	}
+
+	private static AdminEvent givenAdminEvent(ResourceType resourceType, OperationType operationType) {
+		final AdminEvent event = new AdminEvent();
+		event.setRealmId(REALM_ID);
+		event.setResourceType(resourceType);
+		event.setOperationType(operationType);
+		return event;
+	}
+
+	private static AccessToken transformAccessToken(UserSessionModel userSession, Map<String, String> config) {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(new HashMap<String, String>(config));
+		return new UserAttributeSplitterMapper().transformAccessToken(new AccessToken(), mappingModel, null, userSession, null);
+	}
+}
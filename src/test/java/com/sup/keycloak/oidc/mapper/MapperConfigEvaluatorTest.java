@@ -0,0 +1,147 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class MapperConfigEvaluatorTest {
+
+	private static final String MAPPER_ID = "mapper-config-evaluator-test";
+
+	private static final String REALM_EXPORT = "{\"realm\":\"test\",\"roles\":{\"realm\":[{\"name\":\"users\"}]},"
+			+ "\"users\":["
+			+ "{\"username\":\"alice\",\"attributes\":{\"mail\":[\"alice@example.com\",\"al@other.com\"]}},"
+			+ "{\"username\":\"bob\",\"attributes\":{\"mail\":[\"bob@example.com\"]}},"
+			+ "{\"username\":\"carol\",\"attributes\":{\"mail\":[\"carol\",\"c@example.com\"]}},"
+			+ "{\"username\":\"dave\",\"attributes\":{\"phone\":[\"123\"]}},"
+			+ "{\"username\":\"erin\",\"email\":\"erin@example.com\"}"
+			+ "],\"clients\":[]}";
+
+	@Test
+	public void shouldEvaluateRealmExport() throws IOException {
+		final MapperConfigEvaluator.Report report = evaluate("mail", REALM_EXPORT, MapperConfigEvaluator.InputFormat.REALM_EXPORT);
+
+		assertThat(report.getUsers()).isEqualTo(5);
+		assertThat(report.getErrors()).isZero();
+		assertThat(report.getClaimNames()).containsExactly("domain");
+		assertThat(report.getTopValues("domain", 2)).containsExactly(entry("example.com", 3), entry("other.com", 1));
+		assertThat(report.getMetrics().getMissmatches()).isEqualTo(1);
+		assertThat(report.getMetrics().getMissingAttributes()).isEqualTo(2);
+		assertThat(SplitMetricsRegistry.shared().get(MAPPER_ID)).isNull();
+		assertThat(report.getValueCounts()).startsWith(2, 2, 1);
+		assertThat(report.getOutliers()).hasSize(3);
+		assertThat(report.getOutliers().get(0).getNanos()).isGreaterThanOrEqualTo(report.getOutliers().get(2).getNanos());
+		assertThat(report.getOutliers()).allSatisfy(outlier -> assertThat(outlier.getValue())
+				.isIn("alice@example.com", "al@other.com", "bob@example.com", "carol", "c@example.com"));
+	}
+
+	@Test
+	public void shouldReadEmailOfUser() throws IOException {
+		final MapperConfigEvaluator.Report report = evaluate("email", REALM_EXPORT, MapperConfigEvaluator.InputFormat.REALM_EXPORT);
+
+		assertThat(report.getTopValues("domain", 10)).containsExactly(entry("example.com", 1));
+	}
+
+	@Test
+	public void shouldGroupLinesOfUser() throws IOException {
+		final StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			lines.append("user").append(i).append("\tuser").append(i).append("@example.com\n")
+					.append("user").append(i).append("\tuser").append(i).append("@tenant").append(i % 3).append(".com\n");
+		}
+		lines.append("solo\tmissmatch\nsolo\tsolo@example.com\n\nloose@example.com\n");
+
+		final MapperConfigEvaluator.Report report = evaluate("mail", lines.toString(), MapperConfigEvaluator.InputFormat.LINES);
+
+		assertThat(report.getUsers()).isEqualTo(1002);
+		assertThat(report.getTopValues("domain", 1)).containsExactly(entry("example.com", 1002));
+		assertThat(report.getTopValues("domain", 10)).hasSize(4);
+		assertThat(report.getMetrics().getValuesProcessed()).isEqualTo(2003);
+		assertThat(report.getMetrics().getMissmatches()).isEqualTo(1);
+		assertThat(report.getValueCounts()).startsWith(0, 2, 1000);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		report.print(new PrintStream(out, true, "UTF-8"), 2);
+		assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8)).contains("Users: 1002").contains("1002  example.com");
+	}
+
+	@Test
+	public void shouldStopWaitingForFullQueueWhenWorkerFails() {
+		final BlockingQueue<List<MapperConfigEvaluator.UserValues>> queue = new ArrayBlockingQueue<List<MapperConfigEvaluator.UserValues>>(1);
+		queue.add(Collections.<MapperConfigEvaluator.UserValues>emptyList());
+		final CompletableFuture<Object> failed = new CompletableFuture<Object>();
+		failed.completeExceptionally(new OutOfMemoryError("worker"));
+
+		assertTimeoutPreemptively(Duration.ofSeconds(5), () ->
+				assertThatThrownBy(() -> MapperConfigEvaluator.put(queue, Collections.<MapperConfigEvaluator.UserValues>emptyList(),
+						Collections.singletonList(failed)))
+						.isInstanceOf(IOException.class)
+						.hasMessage("A worker failed")
+						.hasCauseInstanceOf(OutOfMemoryError.class));
+	}
+
+	@Test
+	public void shouldPassOnReadFailure() {
+		final InputStream in = new ByteArrayInputStream("a\tb@example.com\n".getBytes(StandardCharsets.UTF_8));
+
+		assertThatThrownBy(() -> MapperConfigEvaluator.readLines(in, user -> {
+			throw new IOException("queue closed");
+		})).isInstanceOf(IOException.class).hasMessage("queue closed");
+	}
+
+	@Test
+	public void shouldChooseFormatByFileNameOrArgument() {
+		assertThat(MapperConfigEvaluator.InputFormat.fromFileName("realm-export.JSON"))
+				.isEqualTo(MapperConfigEvaluator.InputFormat.REALM_EXPORT);
+		assertThat(MapperConfigEvaluator.InputFormat.fromFileName("mail.tsv")).isEqualTo(MapperConfigEvaluator.InputFormat.LINES);
+		assertThat(MapperConfigEvaluator.InputFormat.fromArgument("lines")).isEqualTo(MapperConfigEvaluator.InputFormat.LINES);
+		assertThat(MapperConfigEvaluator.InputFormat.fromArgument("realm-export"))
+				.isEqualTo(MapperConfigEvaluator.InputFormat.REALM_EXPORT);
+		assertThatThrownBy(() -> MapperConfigEvaluator.InputFormat.fromArgument("csv"))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageContaining("csv");
+	}
+
+	private static MapperConfigEvaluator.Report evaluate(final String attribute, final String input,
+			final MapperConfigEvaluator.InputFormat format) throws IOException {
+		final Map<String, String> config = new HashMap<>();
+		config.put("access.token.claim", "true");
+		config.put("claim.name", "domain");
+		config.put("user.attribute", attribute);
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setName(MAPPER_ID);
+		mappingModel.setConfig(config);
+		try (InputStream in = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))) {
+			return new MapperConfigEvaluator(mappingModel, 2, 100, 3).evaluate(in, format);
+		}
+	}
+
+	private static Map.Entry<String, Long> entry(final String value, final long count) {
+		return new AbstractMap.SimpleImmutableEntry<String, Long>(value, count);
+	}
+}
@@ -0,0 +1,235 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperUtils;
+import org.keycloak.representations.AccessToken;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Issues tokens through one shared mapper from many threads, the way Keycloak's workers do, and checks
+ * every claim against the claims issued by a single thread.
+ *
+ * The normal test run does a short pass. `./gradlew stressTest` runs it for longer, see build.gradle for
+ * the thread and token counts. Throughput and latency percentiles are printed for both runs.
+ */
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class MapperStressTest {
+
+	static final String THREADS_PROPERTY = "stress.threads";
+	static final String TOKENS_PROPERTY = "stress.tokens";
+
+	private static final String MAPPER_ID_PREFIX = "stress-";
+	private static final String ATTRIBUTE = "Test";
+	private static final String CLAIM_NAME = "claim";
+
+	private final UserAttributeSplitterMapper mapper = new UserAttributeSplitterMapper();
+	private final List<ProtocolMapperModel> mappers = new ArrayList<ProtocolMapperModel>();
+
+	@AfterEach
+	public void tearDown() {
+		for (ProtocolMapperModel mappingModel : mappers) {
+			SplitPlanCache.shared().invalidate(mappingModel.getId());
+			SplitMetricsRegistry.shared().remove(mappingModel.getId());
+		}
+		GroupAttributeCache.shared().clear();
+	}
+
+	@Test
+	public void shouldMatchSingleThreadedClaimsUnderContention() throws Exception {
+		final int threads = Integer.getInteger(THREADS_PROPERTY, Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+		final int tokensPerThread = Integer.getInteger(TOKENS_PROPERTY, 500);
+		givenMappers();
+		final List<UserSessionModel> sessions = givenUserSessions();
+
+		// the single threaded claims are the expected result, and their latency the baseline.
+		final List<Map<String, Object>> expected = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < mappers.size() * sessions.size(); i++) {
+			expected.add(issue(i, sessions));
+		}
+		final long[] warmedBaseline = new long[tokensPerThread];
+		final long baselineStart = System.nanoTime();
+		for (int i = 0; i < tokensPerThread; i++) {
+			final long start = System.nanoTime();
+			issue(i % expected.size(), sessions);
+			warmedBaseline[i] = System.nanoTime() - start;
+		}
+		report("single thread", 1, tokensPerThread, System.nanoTime() - baselineStart, warmedBaseline);
+		for (ProtocolMapperModel mappingModel : mappers) {
+			SplitMetricsRegistry.shared().get(mappingModel.getId()).reset();
+		}
+
+		final AtomicReference<String> firstDifference = new AtomicReference<String>();
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		final long elapsed;
+		try {
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				final Callable<long[]> worker = () -> {
+					final long[] latencies = new long[tokensPerThread];
+					ready.countDown();
+					go.await();
+					for (int i = 0; i < tokensPerThread; i++) {
+						// each thread walks the cases in its own order, so different mappers and users overlap.
+						final int caseIndex = (int) ((thread * 7919L + i * 31L) % expected.size());
+						final long start = System.nanoTime();
+						final Map<String, Object> claims = issue(caseIndex, sessions);
+						latencies[i] = System.nanoTime() - start;
+						if (!claims.equals(expected.get(caseIndex))) {
+							firstDifference.compareAndSet(null, describe(caseIndex, sessions.size(), expected.get(caseIndex), claims));
+						}
+					}
+					return latencies;
+				};
+				results.add(executor.submit(worker));
+			}
+			ready.await();
+			final long start = System.nanoTime();
+			go.countDown();
+			for (Future<long[]> result : results) {
+				result.get(5, TimeUnit.MINUTES);
+			}
+			elapsed = System.nanoTime() - start;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		final long[] latencies = new long[threads * tokensPerThread];
+		for (int t = 0; t < threads; t++) {
+			System.arraycopy(results.get(t).get(), 0, latencies, t * tokensPerThread, tokensPerThread);
+		}
+		report(threads + " threads", threads, tokensPerThread, elapsed, latencies);
+
+		assertThat(firstDifference.get()).as("claims that differ from a single thread").isNull();
+		long invocations = 0;
+		for (ProtocolMapperModel mappingModel : mappers) {
+			invocations += SplitMetricsRegistry.shared().get(mappingModel.getId()).getInvocations();
+		}
+		assertThat(invocations).as("invocations counted by the metrics").isEqualTo((long) threads * tokensPerThread);
+	}
+
+	private Map<String, Object> issue(final int caseIndex, final List<UserSessionModel> sessions) {
+		final ProtocolMapperModel mappingModel = mappers.get(caseIndex / sessions.size());
+		final UserSessionModel userSession = sessions.get(caseIndex % sessions.size());
+		return mapper.transformAccessToken(new AccessToken(), mappingModel, null, userSession, null).getOtherClaims();
+	}
+
+	private String describe(final int caseIndex, final int sessionCount, final Object expected, final Object actual) {
+		return "mapper=" + mappers.get(caseIndex / sessionCount).getId() + " user=" + caseIndex % sessionCount
+				+ " expected=" + expected + " actual=" + actual;
+	}
+
+	private static void report(final String label, final int threads, final int tokensPerThread, final long elapsedNanos,
+			final long[] latencies) {
+		final long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		final double tokensPerSecond = (double) threads * tokensPerThread * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos);
+		System.out.printf("[MapperStressTest] %s: %d tokens, %.0f tokens/s, p50=%dns p99=%dns p999=%dns%n", label,
+				sorted.length, tokensPerSecond, percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+	}
+
+	private static long percentile(final long[] sorted, final double quantile) {
+		final int index = (int) Math.ceil(quantile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * One mapper for each of the options that keep state between tokens.
+	 */
+	private void givenMappers() {
+		givenMapper("literal", SplitMode.LITERAL.getConfigValue(), "@");
+		givenMapper("regex-final", SplitMode.REGEX.getConfigValue(), "[@.]",
+				UserAttributeSplitterMapper.SEGMENT_INDEX, "-1", UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		givenMapper("multivalued-distinct", SplitMode.LITERAL.getConfigValue(), "@",
+				UserAttributeSplitterMapper.MULTIVALUED, "true", UserAttributeSplitterMapper.FINAL_VALUE, "true",
+				UserAttributeSplitterMapper.DISTINCT, "true");
+		givenMapper("fan-out-budget", SplitMode.LITERAL.getConfigValue(), "@",
+				UserAttributeSplitterMapper.MULTIVALUED, "true", UserAttributeSplitterMapper.FAN_OUT, "domain=final",
+				UserAttributeSplitterMapper.MAX_VALUES, "50", UserAttributeSplitterMapper.MAX_BYTES, "400");
+		givenMapper("parallel", SplitMode.LITERAL.getConfigValue(), "@",
+				UserAttributeSplitterMapper.MULTIVALUED, "true", UserAttributeSplitterMapper.PARALLEL_THRESHOLD, "256");
+		givenMapper("regex-budget", SplitMode.REGEX.getConfigValue(), "(a+)+@",
+				UserAttributeSplitterMapper.REGEX_BUDGET, "1000", UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		givenMapper("group-cache", SplitMode.LITERAL.getConfigValue(), "@",
+				UserAttributeSplitterMapper.MULTIVALUED, "true", ProtocolMapperUtils.AGGREGATE_ATTRS, "true",
+				UserAttributeSplitterMapper.GROUP_CACHE_TTL, "60");
+	}
+
+	private void givenMapper(final String name, final String splitMode, final String splitToken, final String... options) {
+		final Map<String, String> config = new HashMap<>();
+		config.put("access.token.claim", "true");
+		config.put("claim.name", CLAIM_NAME);
+		config.put("user.attribute", ATTRIBUTE);
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, splitMode);
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, splitToken);
+		for (int i = 0; i < options.length; i += 2) {
+			config.put(options[i], options[i + 1]);
+		}
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID_PREFIX + name);
+		mappingModel.setConfig(config);
+		mappers.add(mappingModel);
+	}
+
+	private static List<UserSessionModel> givenUserSessions() {
+		final GroupModel root = givenGroup("root", null, "staff@root.example");
+		final GroupModel team = givenGroup("team", root);
+		final String[] many = new String[600];
+		for (int i = 0; i < many.length; i++) {
+			many[i] = "user" + i + "@domain" + i % 40 + ".example";
+		}
+		final List<UserSessionModel> sessions = new ArrayList<UserSessionModel>();
+		sessions.add(givenUserSession(new String[] {"alice@example.com"}));
+		sessions.add(givenUserSession(new String[] {"bob@one.example", "bob@two.example", "robert@one.example", "nosplit"}));
+		sessions.add(givenUserSession(new String[] {"aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!", "aaa@b"}));
+		sessions.add(givenUserSession(new String[] {"zoë@exämple.com", "日本@example.jp"}, team));
+		sessions.add(givenUserSession(many, root));
+		sessions.add(givenUserSession(new String[0], team));
+		return sessions;
+	}
+
+	private static GroupModel givenGroup(final String id, final GroupModel parent, final String... attributeValues) {
+		final String parentId = parent == null ? null : parent.getId();
+		// stub only mocks keep no record of their calls, so they stay cheap and safe to share between threads.
+		final GroupModel group = Mockito.mock(GroupModel.class, withSettings().stubOnly());
+		when(group.getId()).thenReturn(id);
+		when(group.getAttributeStream(ATTRIBUTE)).thenAnswer(invocation -> Stream.of(attributeValues));
+		when(group.getParent()).thenReturn(parent);
+		when(group.getParentId()).thenReturn(parentId);
+		return group;
+	}
+
+	private static UserSessionModel givenUserSession(final String[] attributeValues, final GroupModel... groups) {
+		final UserSessionModel userSession = Mockito.mock(UserSessionModel.class, withSettings().stubOnly());
+		final UserModel user = Mockito.mock(UserModel.class, withSettings().stubOnly());
+		when(user.getAttributeStream(ATTRIBUTE)).thenAnswer(invocation -> Stream.of(attributeValues));
+		when(user.getGroupsStream()).thenAnswer(invocation -> Arrays.stream(groups));
+		when(userSession.getUser()).thenReturn(user);
+		return userSession;
+	}
+}
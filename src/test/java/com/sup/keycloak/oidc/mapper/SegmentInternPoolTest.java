@@ -0,0 +1,111 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.representations.AccessToken;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class SegmentInternPoolTest {
+
+	private static final String MAPPER_ID = "segment-intern-pool-test";
+	private static final String ATTRIBUTE = "Test";
+
+	@AfterEach
+	public void tearDown() {
+		SegmentInternPool.shared().clear();
+		SplitPlanCache.shared().invalidate(MAPPER_ID);
+		SplitMetricsRegistry.shared().remove(MAPPER_ID);
+	}
+
+	@Test
+	public void shouldReturnSameInstanceForEqualSegments() {
+		final SegmentInternPool pool = new SegmentInternPool(16, 64);
+
+		final String first = pool.intern("alice@example.com", 6, 17);
+		final String second = pool.intern("bob@example.com", 4, 15);
+
+		assertThat(first).isEqualTo("example.com").isSameAs(second);
+		assertThat(pool.getHits()).isEqualTo(1);
+		assertThat(pool.getMisses()).isEqualTo(1);
+		assertThat(pool.getHitRate()).isEqualTo(0.5);
+	}
+
+	@Test
+	public void shouldEvictFromTakenSlot() {
+		final SegmentInternPool pool = new SegmentInternPool(1, 64);
+
+		pool.intern("one");
+		pool.intern("two");
+		final String one = pool.intern("x:one", 2, 5);
+
+		assertThat(one).isEqualTo("one");
+		assertThat(pool.getHits()).isZero();
+		assertThat(pool.getEvictions()).isEqualTo(2);
+		assertThat(pool.getSize()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldNotPoolLongSegments() {
+		final SegmentInternPool pool = new SegmentInternPool(16, 4);
+
+		assertThat(pool.intern("abcdef", 0, 5)).isEqualTo("abcde").isNotSameAs(pool.intern("abcdef", 0, 5));
+		assertThat(pool.getMisses()).isZero();
+	}
+
+	@Test
+	public void shouldRoundSizeUpToPowerOfTwo() {
+		assertThat(new SegmentInternPool(1000, 64).getSize()).isEqualTo(1024);
+		assertThat(new SegmentInternPool(1024, 64).getSize()).isEqualTo(1024);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldInternClaimValuesAcrossTokens() {
+		final Map<String, String> config = new HashMap<>();
+		config.put("access.token.claim", "true");
+		config.put("claim.name", "claim");
+		config.put("user.attribute", ATTRIBUTE);
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.LITERAL.getConfigValue());
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.INTERN, "true");
+		config.put(UserAttributeSplitterMapper.TRANSFORMS, "lowercase");
+
+		final List<Object> first = (List<Object>) transformAccessToken(givenUserSession("alice@Example.com", "al@example.com"), config)
+				.getOtherClaims().get("claim");
+		final List<Object> second = (List<Object>) transformAccessToken(givenUserSession("bob@EXAMPLE.com", "bob@other.com"), config)
+				.getOtherClaims().get("claim");
+
+		assertThat(first).containsExactly("example.com", "example.com");
+		assertThat(second).containsExactly("example.com", "other.com");
+		assertThat(first.get(0)).isSameAs(first.get(1)).isSameAs(second.get(0));
+	}
+
+	private static UserSessionModel givenUserSession(final String... attributeValues) {
+		final UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		final UserModel user = Mockito.mock(UserModel.class);
+		when(user.getAttributeStream(ATTRIBUTE)).thenAnswer(invocation -> Stream.of(attributeValues));
+		when(userSession.getUser()).thenReturn(user);
+		return userSession;
+	}
+
+	private static AccessToken transformAccessToken(final UserSessionModel userSession, final Map<String, String> config) {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(new HashMap<String, String>(config));
+		return new UserAttributeSplitterMapper().transformAccessToken(new AccessToken(), mappingModel, null, userSession, null);
+	}
+}
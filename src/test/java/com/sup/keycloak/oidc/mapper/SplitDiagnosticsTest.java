@@ -0,0 +1,55 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.ProtocolMapperModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SplitDiagnosticsTest {
+
+	@Test
+	public void shouldBeOffByDefault() {
+		assertThat(SplitDiagnostics.fromConfig(null)).isSameAs(SplitDiagnostics.OFF);
+		assertThat(SplitDiagnostics.fromConfig(" ")).isSameAs(SplitDiagnostics.OFF);
+		assertThat(SplitDiagnostics.fromConfig("0")).isSameAs(SplitDiagnostics.OFF);
+		assertThat(SplitDiagnostics.fromConfig("-5")).isSameAs(SplitDiagnostics.OFF);
+		assertThat(SplitDiagnostics.fromConfig("often")).isSameAs(SplitDiagnostics.OFF);
+		assertThat(SplitDiagnostics.OFF.sample()).isFalse();
+		assertThat(SplitDiagnostics.OFF.isEnabled()).isFalse();
+	}
+
+	@Test
+	public void shouldSampleOneInEvery() {
+		final SplitDiagnostics diagnostics = SplitDiagnostics.fromConfig("3");
+		int sampled = 0;
+		for (int i = 0; i < 9; i++) {
+			if (diagnostics.sample()) {
+				sampled++;
+			}
+		}
+
+		assertThat(diagnostics.getSampleEvery()).isEqualTo(3);
+		assertThat(sampled).isEqualTo(3);
+	}
+
+	@Test
+	public void shouldSampleEveryTokenAtOne() {
+		final SplitDiagnostics diagnostics = SplitDiagnostics.fromConfig("1");
+
+		assertThat(diagnostics.sample()).isTrue();
+		assertThat(diagnostics.sample()).isTrue();
+	}
+
+	@Test
+	public void shouldCompileIntoPlan() {
+		final Map<String, String> config = new HashMap<String, String>();
+		config.put(UserAttributeSplitterMapper.DIAGNOSTICS, "10");
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setConfig(config);
+
+		assertThat(SplitPlan.compile(mappingModel).getDiagnostics().getSampleEvery()).isEqualTo(10);
+	}
+}
@@ -0,0 +1,340 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ProtocolMapperModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperUtils;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.IDToken;
+import org.mockito.Mockito;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class SplitMetricsTest {
+
+	static final String MAPPER_ID = "split-metrics-test";
+
+	@AfterEach
+	public void tearDown() {
+		SplitMetricsRegistry.shared().remove(MAPPER_ID);
+		SplitPlanCache.shared().invalidate(MAPPER_ID);
+	}
+
+	@Test
+	public void shouldCountValuesHitsAndMissmatches() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		config.put(ProtocolMapperUtils.MULTIVALUED, "true");
+
+		transformAccessToken(givenUserSession("a@b", "nosplit", "c@d"), config);
+		transformAccessToken(givenUserSession(), config);
+
+		final SplitMetrics metrics = UserAttributeSplitterMapper.metrics().get(MAPPER_ID);
+		assertThat(metrics.getInvocations()).isEqualTo(2);
+		assertThat(metrics.getValuesProcessed()).isEqualTo(3);
+		assertThat(metrics.getSplitHits()).isEqualTo(2);
+		assertThat(metrics.getMissmatches()).isEqualTo(1);
+		assertThat(metrics.getMissmatchesSkipped()).isEqualTo(1);
+		assertThat(metrics.getMissmatchRate()).isEqualTo(1d / 3);
+		assertThat(metrics.getMissingAttributes()).isEqualTo(1);
+		assertThat(metrics.getPatternFallbacks()).isZero();
+		assertThat(metrics.getLatency().getCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void shouldCountPatternFallbacks() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "[");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("a[b"), config);
+
+		assertThat(accessToken.getOtherClaims().get("claim")).isEqualTo("a[b");
+		final SplitMetrics metrics = UserAttributeSplitterMapper.metrics().get(MAPPER_ID);
+		assertThat(metrics.getPatternFallbacks()).isEqualTo(1);
+		assertThat(metrics.getMissmatches()).isEqualTo(1);
+		assertThat(metrics.getMissmatchesSkipped()).isZero();
+	}
+
+	@Test
+	public void shouldTreatRunawayRegexAsMissmatch() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "(a+)+b");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		config.put(UserAttributeSplitterMapper.REGEX_BUDGET, "1000");
+
+		final AccessToken accessToken = assertTimeoutPreemptively(Duration.ofSeconds(10),
+				() -> transformAccessToken(givenUserSession("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!"), config));
+
+		assertThat(accessToken.getOtherClaims()).doesNotContainKey("claim");
+		final SplitMetrics metrics = UserAttributeSplitterMapper.metrics().get(MAPPER_ID);
+		assertThat(metrics.getBudgetExceeded()).isEqualTo(1);
+		assertThat(metrics.getMissmatchesSkipped()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldCountTruncations() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(ProtocolMapperUtils.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.MAX_VALUES, "1");
+
+		transformAccessToken(givenUserSession("a@b", "c@d"), config);
+		transformAccessToken(givenUserSession("a@b"), config);
+
+		final SplitMetrics metrics = UserAttributeSplitterMapper.metrics().get(MAPPER_ID);
+		assertThat(metrics.getTruncations()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldReuseClaimsWithinRequest() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put("id.token.claim", "true");
+		config.put("userinfo.token.claim", "true");
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(config);
+		final UserSessionModel userSession = givenUserSession("a@b");
+		when(userSession.getUser().getId()).thenReturn("user-id");
+		final KeycloakSession request = givenKeycloakSession();
+		final UserAttributeSplitterMapper mapper = new UserAttributeSplitterMapper();
+
+		final AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), mappingModel, request, userSession, null);
+		final IDToken idToken = mapper.transformIDToken(new IDToken(), mappingModel, request, userSession, null);
+		final AccessToken userInfo = mapper.transformUserInfoToken(new AccessToken(), mappingModel, request, userSession, null);
+		// the next request splits again.
+		mapper.transformAccessToken(new AccessToken(), mappingModel, givenKeycloakSession(), userSession, null);
+
+		assertThat(accessToken.getOtherClaims()).containsEntry("claim", "a");
+		assertThat(idToken.getOtherClaims()).isEqualTo(accessToken.getOtherClaims());
+		assertThat(userInfo.getOtherClaims()).isEqualTo(accessToken.getOtherClaims());
+		verify(userSession.getUser(), times(2)).getAttributeStream("Test");
+		final SplitMetrics metrics = UserAttributeSplitterMapper.metrics().get(MAPPER_ID);
+		assertThat(metrics.getInvocations()).isEqualTo(4);
+		assertThat(metrics.getRequestReuses()).isEqualTo(2);
+	}
+
+	@Test
+	public void shouldNotReuseClaimsOfEditedMapper() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		final UserSessionModel userSession = givenUserSession("a@b");
+		when(userSession.getUser().getId()).thenReturn("user-id");
+		final KeycloakSession request = givenKeycloakSession();
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(config);
+		new UserAttributeSplitterMapper().transformAccessToken(new AccessToken(), mappingModel, request, userSession, null);
+
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		final AccessToken accessToken = new UserAttributeSplitterMapper()
+				.transformAccessToken(new AccessToken(), mappingModel, request, userSession, null);
+
+		assertThat(accessToken.getOtherClaims()).containsEntry("claim", "b");
+	}
+
+	@Test
+	public void shouldNeverReuseClaimsOfOtherConfigAcrossThreads() throws Exception {
+		// "Aa" and "BB" have the same hashCode, so both configs have the same fingerprint.
+		final ProtocolMapperModel[] mappingModels = {givenMapper("Aa"), givenMapper("BB")};
+		final String[] expected = {"1", "1Aa2"};
+		final UserSessionModel userSession = givenUserSession("1Aa2BB3");
+		when(userSession.getUser().getId()).thenReturn("user-id");
+		final KeycloakSession request = givenKeycloakSession();
+		final UserAttributeSplitterMapper mapper = new UserAttributeSplitterMapper();
+		final ExecutorService threads = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int thread = 0; thread < 4; thread++) {
+				final int offset = thread;
+				results.add(threads.submit(() -> {
+					int stale = 0;
+					for (int i = 0; i < 2000; i++) {
+						final int config = (i + offset) % 2;
+						// the ID token reuses the claims of the access token, unless another thread got in between.
+						final AccessToken accessToken = mapper.transformAccessToken(new AccessToken(), mappingModels[config],
+								request, userSession, null);
+						final IDToken idToken = mapper.transformIDToken(new IDToken(), mappingModels[config], request,
+								userSession, null);
+						if (!expected[config].equals(accessToken.getOtherClaims().get("claim"))
+								|| !expected[config].equals(idToken.getOtherClaims().get("claim"))) {
+							stale++;
+						}
+					}
+					return stale;
+				}));
+			}
+			for (Future<Integer> result : results) {
+				assertThat(result.get()).isZero();
+			}
+		} finally {
+			threads.shutdownNow();
+		}
+		assertThat(UserAttributeSplitterMapper.metrics().get(MAPPER_ID).getRequestReuses()).isPositive();
+	}
+
+	private static ProtocolMapperModel givenMapper(final String splitToken) {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, splitToken);
+		config.put("id.token.claim", "true");
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(config);
+		return mappingModel;
+	}
+
+	private static KeycloakSession givenKeycloakSession() {
+		// thread-safe, so a test can share one request between threads.
+		final Map<String, Object> attributes = new ConcurrentHashMap<>();
+		final KeycloakSession session = Mockito.mock(KeycloakSession.class);
+		when(session.getAttribute(Mockito.anyString(), Mockito.any())).thenAnswer(invocation ->
+				((Class<?>) invocation.getArgument(1)).cast(attributes.get(invocation.<String>getArgument(0))));
+		Mockito.doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+				.when(session).setAttribute(Mockito.anyString(), Mockito.any());
+		return session;
+	}
+
+	@Test
+	public void shouldPublishOverJmx() throws Exception {
+		transformAccessToken(givenUserSession("a@b"), createConfig());
+
+		final Object invocations = ManagementFactory.getPlatformMBeanServer()
+				.getAttribute(SplitMetricsRegistry.objectNameOf(MAPPER_ID), "Invocations");
+		assertThat(invocations).isEqualTo(1L);
+
+		SplitMetricsRegistry.shared().remove(MAPPER_ID);
+		assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(SplitMetricsRegistry.objectNameOf(MAPPER_ID)))
+				.isFalse();
+	}
+
+	@Test
+	public void shouldReplaceMBeanLeftByEarlierDeployment() throws Exception {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new SplitMetrics(MAPPER_ID),
+				SplitMetricsRegistry.objectNameOf(MAPPER_ID));
+
+		transformAccessToken(givenUserSession("a@b"), createConfig());
+
+		assertThat(ManagementFactory.getPlatformMBeanServer()
+				.getAttribute(SplitMetricsRegistry.objectNameOf(MAPPER_ID), "Invocations")).isEqualTo(1L);
+	}
+
+	@Test
+	public void shouldUnregisterEveryMBeanOnClose() throws Exception {
+		final SplitMetricsRegistry registry = new SplitMetricsRegistry(true);
+		registry.forMapper("closed-mapper");
+		assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(SplitMetricsRegistry.objectNameOf("closed-mapper")))
+				.isTrue();
+
+		registry.close();
+
+		assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(SplitMetricsRegistry.objectNameOf("closed-mapper")))
+				.isFalse();
+		assertThat(registry.getAll()).isEmpty();
+	}
+
+	@Test
+	public void shouldRemoveMetricsWhenMapperIsInvalidated() {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(createConfig());
+		SplitPlanCache.shared().get(mappingModel);
+		assertThat(SplitMetricsRegistry.shared().get(MAPPER_ID)).isNotNull();
+
+		SplitPlanCache.shared().invalidate(MAPPER_ID);
+
+		assertThat(SplitMetricsRegistry.shared().get(MAPPER_ID)).isNull();
+	}
+
+	@Test
+	public void shouldKeepMetricsWhenPlanIsEvicted() {
+		final SplitPlanCache cache = new SplitPlanCache(1, SplitMetricsRegistry.shared()::remove);
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(createConfig());
+		final SplitMetrics metrics = cache.get(mappingModel).getMetrics();
+		final ProtocolMapperModel other = new ProtocolMapperModel();
+		other.setId("evicting-mapper");
+		other.setConfig(createConfig());
+
+		cache.get(other);
+
+		assertThat(cache.size()).isEqualTo(1);
+		assertThat(SplitMetricsRegistry.shared().get(MAPPER_ID)).isSameAs(metrics);
+		assertThat(cache.get(mappingModel).getMetrics()).isSameAs(metrics);
+		SplitMetricsRegistry.shared().remove("evicting-mapper");
+	}
+
+	@Test
+	public void shouldKeepMetricsWhenMapperIsEdited() {
+		final Map<String, String> config = createConfig();
+		transformAccessToken(givenUserSession("a@b"), config);
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		transformAccessToken(givenUserSession("a@b"), config);
+
+		assertThat(UserAttributeSplitterMapper.metrics().get(MAPPER_ID).getInvocations()).isEqualTo(2);
+	}
+
+	@Test
+	public void shouldBucketLatencyByPowerOfTwo() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 98; i++) {
+			histogram.record(1000);
+		}
+		histogram.record(100_000);
+		histogram.record(10_000_000);
+
+		assertThat(LatencyHistogram.bucketOf(0)).isZero();
+		assertThat(LatencyHistogram.bucketOf(1)).isZero();
+		assertThat(LatencyHistogram.bucketOf(1024)).isEqualTo(10);
+		assertThat(LatencyHistogram.bucketOf(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKETS - 1);
+		assertThat(histogram.percentile(0.5)).isEqualTo(1024);
+		assertThat(histogram.percentile(0.99)).isEqualTo(131_072);
+		assertThat(histogram.percentile(1)).isEqualTo(16_777_216);
+		assertThat(new LatencyHistogram().percentile(0.99)).isZero();
+	}
+
+	private static UserSessionModel givenUserSession(String... attributeValues) {
+		final UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		final UserModel user = Mockito.mock(UserModel.class);
+		when(user.getAttributeStream("Test")).thenAnswer(invocation -> Stream.of(attributeValues));
+		when(user.getGroupsStream()).thenAnswer(invocation -> Stream.empty());
+		when(userSession.getUser()).thenReturn(user);
+		return userSession;
+	}
+
+	private static AccessToken transformAccessToken(UserSessionModel userSession, Map<String, String> config) {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(MAPPER_ID);
+		mappingModel.setConfig(new HashMap<String, String>(config));
+		return new UserAttributeSplitterMapper().transformAccessToken(new AccessToken(), mappingModel, null, userSession, null);
+	}
+
+	private static Map<String, String> createConfig() {
+		final Map<String, String> result = new HashMap<>();
+		result.put("access.token.claim", "true");
+		result.put("claim.name", "claim");
+		result.put("user.attribute", "Test");
+		return result;
+	}
+}
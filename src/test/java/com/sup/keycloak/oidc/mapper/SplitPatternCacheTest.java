@@ -0,0 +1,100 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class SplitPatternCacheTest {
+
+	@Test
+	public void shouldReturnSamePatternOnHit() {
+		final SplitPatternCache cache = new SplitPatternCache(4);
+		final Pattern first = cache.get("[Ss]");
+		final Pattern second = cache.get("[Ss]");
+
+		assertThat(second).isSameAs(first);
+		assertThat(cache.getMisses()).isEqualTo(1);
+		assertThat(cache.getHits()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldEvictOldestWhenFull() {
+		final SplitPatternCache cache = new SplitPatternCache(2);
+		cache.get("a");
+		cache.get("b");
+		cache.get("c");
+
+		assertThat(cache.size()).isEqualTo(2);
+		assertThat(cache.getEvictions()).isEqualTo(1);
+
+		// "a" was evicted, so it is compiled again.
+		cache.get("a");
+		assertThat(cache.getMisses()).isEqualTo(4);
+	}
+
+	@Test
+	public void shouldPropagateInvalidPattern() {
+		final SplitPatternCache cache = new SplitPatternCache(2);
+		assertThatThrownBy(() -> cache.get("^^(&*")).isInstanceOf(PatternSyntaxException.class);
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	public void shouldRememberInvalidPattern() {
+		final SplitPatternCache cache = new SplitPatternCache(2);
+		final Throwable first = catchThrowable(() -> cache.get("^^(&*"));
+		final Throwable second = catchThrowable(() -> cache.get("^^(&*"));
+
+		assertThat(first).isInstanceOf(PatternSyntaxException.class);
+		assertThat(second).isSameAs(first);
+		assertThat(cache.getMisses()).isEqualTo(1);
+		assertThat(cache.getHits()).isEqualTo(1);
+		assertThat(cache.failureCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldEvictOldestFailureWhenFull() {
+		final SplitPatternCache cache = new SplitPatternCache(2);
+		catchThrowable(() -> cache.get("("));
+		final Throwable kept = catchThrowable(() -> cache.get("["));
+		catchThrowable(() -> cache.get("{"));
+
+		assertThat(cache.failureCount()).isEqualTo(2);
+		assertThat(catchThrowable(() -> cache.get("["))).isSameAs(kept);
+		assertThat(cache.getMisses()).isEqualTo(3);
+
+		// "(" was evicted, so it is compiled again.
+		catchThrowable(() -> cache.get("("));
+		assertThat(cache.getMisses()).isEqualTo(4);
+	}
+
+	@Test
+	public void shouldResetOnClear() {
+		final SplitPatternCache cache = new SplitPatternCache(2);
+		cache.get("a");
+		cache.get("a");
+		cache.clear();
+
+		assertThat(cache.size()).isZero();
+		assertThat(cache.getHits()).isZero();
+		assertThat(cache.getMisses()).isZero();
+	}
+
+	@Test
+	public void shouldCountEveryBudgetOverrun() {
+		final SplitPatternCache cache = new SplitPatternCache(1);
+		cache.recordBudgetExceeded("(a+)+b");
+		cache.recordBudgetExceeded("(a+)+b");
+		cache.recordBudgetExceeded("(b+)+c");
+
+		assertThat(cache.getBudgetExceeded()).isEqualTo(3);
+
+		cache.clear();
+		assertThat(cache.getBudgetExceeded()).isZero();
+	}
+}
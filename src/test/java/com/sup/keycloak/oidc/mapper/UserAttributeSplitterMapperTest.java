@@ -8,6 +8,8 @@ import org.junit.jupiter.params.provider.CsvSource;
 import org.keycloak.models.ProtocolMapperModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.UserSessionModel;
+import org.keycloak.protocol.ProtocolMapperConfigException;
+import org.keycloak.protocol.ProtocolMapperUtils;
 import org.keycloak.protocol.oidc.mappers.FullNameMapper;
 import org.keycloak.protocol.oidc.mappers.OIDCAttributeMapperHelper;
 import org.keycloak.provider.ProviderConfigProperty;
@@ -15,14 +17,18 @@ import org.keycloak.representations.AccessToken;
 import org.mockito.Mockito;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Mockito.when;
 
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
 public class UserAttributeSplitterMapperTest {
 
 	static final String CLAIM_NAME = "handlerIdClaimNameExample";
@@ -60,6 +66,7 @@ public class UserAttributeSplitterMapperTest {
 				OIDCAttributeMapperHelper.TOKEN_CLAIM_NAME,
 				OIDCAttributeMapperHelper.INCLUDE_IN_USERINFO,
 				UserAttributeSplitterMapper.SPLIT_TOKEN,
+				UserAttributeSplitterMapper.SPLIT_MODE,
 				UserAttributeSplitterMapper.FINAL_VALUE,
 				UserAttributeSplitterMapper.SKIP_MISSMATCH);
 	}
@@ -74,6 +81,149 @@ public class UserAttributeSplitterMapperTest {
 		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo("hello world");
 	}
 
+	@Test
+	public void shouldSplitSingleValueIntoClaim() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("paul@test-email.com.au"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo("test-email.com.au");
+	}
+
+	@Test
+	public void shouldSplitMultipleValuesIntoClaim() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "|");
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.LITERAL.getConfigValue());
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		config.put(ProtocolMapperUtils.MULTIVALUED, "true");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("a|1", "b|2", "c"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "b"));
+	}
+
+	@Test
+	public void shouldMapWholeValueWithoutSplitToken() {
+		final AccessToken accessToken = transformAccessToken(givenUserSession("hello world"), createConfig());
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo("hello world");
+	}
+
+	@Test
+	public void shouldRecompilePlanWhenConfigChanges() {
+		final SplitPlanCache cache = new SplitPlanCache(4);
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId("mapper-id");
+		mappingModel.setConfig(createConfig());
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+
+		final SplitPlan plan = cache.get(mappingModel);
+		assertThat(cache.get(mappingModel)).isSameAs(plan);
+		assertThat(plan.getSplitToken()).isEqualTo("@");
+		assertThat(plan.getAttributeName()).isEqualTo("Test");
+
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "|");
+		final SplitPlan edited = cache.get(mappingModel);
+		assertThat(edited).isNotSameAs(plan);
+		assertThat(edited.getSplitToken()).isEqualTo("|");
+		assertThat(cache.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldRecompilePlanWhenEditedConfigHasSameHash() {
+		final SplitPlanCache cache = new SplitPlanCache(4);
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId("mapper-id");
+		mappingModel.setConfig(createConfig());
+		// "Aa" and "BB" have the same hashCode, so the two configs have the same fingerprint.
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "Aa");
+		final SplitPlan plan = cache.get(mappingModel);
+
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "BB");
+		final SplitPlan edited = cache.get(mappingModel);
+
+		assertThat(edited.getFingerprint()).isEqualTo(plan.getFingerprint());
+		assertThat(edited).isNotSameAs(plan);
+		assertThat(edited.getSplitToken()).isEqualTo("BB");
+	}
+
+	@Test
+	public void shouldNotCacheUnsavedMapperPlans() {
+		final SplitPlanCache cache = new SplitPlanCache(4);
+		final ProtocolMapperModel first = new ProtocolMapperModel();
+		first.setConfig(createConfig());
+		first.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		final ProtocolMapperModel second = new ProtocolMapperModel();
+		second.setId("");
+		second.setConfig(createConfig());
+		second.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "|");
+
+		assertThat(cache.get(first).getSplitToken()).isEqualTo("@");
+		assertThat(cache.get(second).getSplitToken()).isEqualTo("|");
+		assertThat(cache.size()).isZero();
+	}
+
+	@Test
+	public void shouldKeepPlansInUseWhenFull() {
+		final SplitPlanCache cache = new SplitPlanCache(4);
+		final List<ProtocolMapperModel> mappers = new ArrayList<ProtocolMapperModel>();
+		final List<SplitPlan> plans = new ArrayList<SplitPlan>();
+		for (int i = 0; i < 4; i++) {
+			final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+			mappingModel.setId("mapper-" + i);
+			mappingModel.setConfig(createConfig());
+			mappers.add(mappingModel);
+			plans.add(cache.get(mappingModel));
+		}
+
+		// the first two keep issuing tokens while new mappers fill the cache.
+		for (int i = 4; i < 20; i++) {
+			assertThat(cache.get(mappers.get(0))).isSameAs(plans.get(0));
+			assertThat(cache.get(mappers.get(1))).isSameAs(plans.get(1));
+			final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+			mappingModel.setId("mapper-" + i);
+			mappingModel.setConfig(createConfig());
+			cache.get(mappingModel);
+			assertThat(cache.size()).isEqualTo(4);
+		}
+
+		assertThat(cache.get(mappers.get(0))).isSameAs(plans.get(0));
+		assertThat(cache.get(mappers.get(1))).isSameAs(plans.get(1));
+		assertThat(cache.get(mappers.get(2))).isNotSameAs(plans.get(2));
+	}
+
+	@Test
+	public void shouldCompileInvalidRegexPlanAsMissmatch() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "^^(&*");
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setConfig(config);
+
+		final SplitPlan plan = SplitPlan.compile(mappingModel);
+		assertThat(plan.hasSplitToken()).isTrue();
+		assertThat(plan.getSplitter()).isNull();
+	}
+
+	private UserSessionModel givenUserSession(String... attributeValues) {
+		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
+		UserModel user = Mockito.mock(UserModel.class);
+		when(user.getAttributeStream("Test")).thenAnswer(invocation -> Stream.of(attributeValues));
+		when(user.getGroupsStream()).thenAnswer(invocation -> Stream.empty());
+		when(userSession.getUser()).thenReturn(user);
+		return userSession;
+	}
+
+	private AccessToken transformAccessToken(UserSessionModel userSessionModel, Map<String, String> config) {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setConfig(config);
+		return new UserAttributeSplitterMapper().transformAccessToken(new AccessToken(), mappingModel, null,
+				userSessionModel,
+				null);
+	}
+
 	private UserSessionModel givenUserSession() {
 		UserSessionModel userSession = Mockito.mock(UserSessionModel.class);
 		UserModel user = Mockito.mock(UserModel.class);
@@ -343,6 +493,600 @@ assertThat(UserAttributeSplitterMapper.splitValue(userAttribString, splitToken,
 	}
 
 
+	@DisplayName("LITERAL: Split on plain text")
+	@ParameterizedTest(name = TEST_NAME)
+	//return value, value, splitString, finalValue, skipMissmatch
+	@CsvSource(delimiter = ';', value = {
+		"paul;paul@test-email.com.au;@; false;false",
+		"test-email.com.au;paul@test-email.com.au;@; true;false",
+		"a;a|b|c;|; false;false",
+		"c;a|b|c;|; true;false",
+		"www;www.example.com;.; false;false",
+		"com;www.example.com;.; true;false",
+		"tenant;tenant::role::read;::; false;false",
+		"read;tenant::role::read;::; true;false",
+		"123S456;123S456;[Ss]; false;false",
+		"123S456;123S456;[Ss]; true;true",
+		"456;[Ss]456;[Ss]; true;true",
+		";|abc;|; false;false",
+		"abc;abc||;|; true;false",
+		";|||;|; true;false"
+	})
+	public void splitValuesLiteralTest(String result, String userAttribString, String splitToken, final boolean finalValue,
+			boolean skipMissmatch) {
+		assertThat(UserAttributeSplitterMapper.splitValue(userAttribString, splitToken, SplitMode.LITERAL, finalValue, skipMissmatch))
+				.isEqualTo(result);
+	}
+
+	@ParameterizedTest(name = "{displayName}:{index} => expectedResult={0}, userAttribString={1}, splitToken={2}, skipMissmatch={3}")
+	//return value, value, pattern, skipMissmatch
+	@CsvSource(delimiter = ';', value = {
+		"Paul Smith;CN=Paul Smith,OU=Staff,DC=example,DC=com;^CN=([^,]+);false",
+		"tenant-42;urn:example:tenant:tenant-42:role:admin;:tenant:([^:]+);false",
+		"example.com;paul@example.com;(?<=@).+;false",
+		"OU=Staff;OU=Staff;^CN=([^,]+);false",
+		";OU=Staff;^CN=([^,]+);true",
+		";CN=,OU=Staff;^CN=([^,]*);false",
+		";CN=Paul;^CN=(x)?Paul;false"
+	})
+	public void splitValueExtractTest(String result, String userAttribString, String splitToken, boolean skipMissmatch) {
+		assertThat(UserAttributeSplitterMapper.splitValue(userAttribString, splitToken, SplitMode.EXTRACT, -1, skipMissmatch))
+				.isEqualTo(result);
+	}
+
+	@DisplayName("LITERAL: Same segments as a quoted regex")
+	@ParameterizedTest(name = "{displayName}:{index} => inputString={0}, splitToken={1}")
+	@CsvSource(delimiter = ';', value = {
+		"ABCD;S",
+		"SABCDS;S",
+		"ASBSCSD;S",
+		"a||b|||;|",
+		"xaaa;aa",
+		"aaaa;aa",
+		"a.b.c;."
+	})
+	public void literalSplitMatchesQuotedRegexTest(String inputString, String splitToken) {
+		assertThat(Splitter.compile(splitToken, SplitMode.LITERAL).split(inputString))
+				.containsExactly(inputString.split(java.util.regex.Pattern.quote(splitToken)));
+	}
+
+	@DisplayName("CHARACTER SET: Same segments as a regex character class")
+	@ParameterizedTest(name = "{displayName}:{index} => inputString={0}, splitToken={1}")
+	@CsvSource(delimiter = ';', value = {
+		"tenant|role@read;@|",
+		"@a||b@;@|",
+		"a.b-c~d;.-~",
+		"abc;@|",
+		"a^b]c\\d;^]\\",
+		"caf\u00e9\u00b7bar\u00b7;\u00b7",
+		"a\ud83d\ude00b\ud83d\ude01c;\ud83d\ude00",
+		"a\ud83d\ude00b|c;|\u00e9"
+	})
+	public void characterSetSplitMatchesRegexClassTest(String inputString, String splitToken) {
+		final StringBuilder characterClass = new StringBuilder("[");
+		splitToken.codePoints().forEach(codePoint -> characterClass.append(java.util.regex.Pattern.quote(new String(Character.toChars(codePoint)))));
+
+		assertThat(Splitter.compile(splitToken, SplitMode.CHARACTER_SET).split(inputString))
+				.containsExactly(inputString.split(characterClass.append(']').toString()));
+	}
+
+	/**
+	 * select only cuts out the wanted segment, but must return the same as picking it out of a full split.
+	 */
+	@DisplayName("SELECT: Same segment as a full split")
+	@ParameterizedTest(name = "{displayName}:{index} => inputString={0}, splitToken={1}, splitMode={2}")
+	@CsvSource(delimiter = ';', value = {
+		"ABCD;S;regex",
+		"SABCD;S;regex",
+		"ABCDS;S;regex",
+		"SABCDS;S;regex",
+		"S;S;regex",
+		"SSS;S;regex",
+		"ASBSCSD;S;regex",
+		"A123S;(?i)s;regex",
+		"aSbSc;(?=S);regex",
+		"SaSb;(?=S);regex",
+		"abc;x*;regex",
+		"a,,b,,;,+;regex",
+		"a||b|||;|;literal",
+		"|||;|;literal",
+		"xaaa;aa;literal",
+		"aaaa;aa;literal",
+		"a.b.c;.;literal",
+		"a@b|c;@|;character-set",
+		"|a@@b|;@|;character-set"
+	})
+	public void selectMatchesSplitTest(String inputString, String splitToken, String splitMode) {
+		final Splitter splitter = !splitMode.equals("regex")
+				? Splitter.compile(splitToken, SplitMode.fromConfig(splitMode))
+				: new Splitter.RegexSplitter(java.util.regex.Pattern.compile(splitToken));
+		final String[] split = splitter.split(inputString);
+		final String first = split.length == 0 || split[0].isEmpty() ? null : split[0];
+		final String last = split.length == 0 || split[split.length - 1].isEmpty() ? null : split[split.length - 1];
+
+		assertThat(splitter.select(inputString, false)).isEqualTo(first);
+		assertThat(splitter.select(inputString, true)).isEqualTo(last);
+	}
+
+	/**
+	 * A segment index picks the same segment as indexing into a full split, counting back from the end when negative.
+	 */
+	@DisplayName("SELECT: Same indexed segment as a full split")
+	@ParameterizedTest(name = "{displayName}:{index} => inputString={0}, splitToken={1}, splitMode={2}")
+	@CsvSource(delimiter = ';', value = {
+		"a|b|c|d|e;|;literal",
+		"|a||b|c||;|;literal",
+		"ABCD;S;regex",
+		"SABCDS;S;regex",
+		"SSS;S;regex",
+		"aSbSc;(?=S);regex",
+		"a,,b,,;,+;regex",
+		"aaaa;aa;literal",
+		"a@b|c@|d;@|;character-set",
+		"'a b:c  d:';' :';character-set"
+	})
+	public void selectSegmentIndexMatchesSplitTest(String inputString, String splitToken, String splitMode) {
+		final Splitter splitter = Splitter.compile(splitToken, SplitMode.fromConfig(splitMode));
+		final String[] split = splitter.split(inputString);
+		final boolean notSplit = split.length == 1 && split[0].equals(inputString);
+		final int[] indexes = {-7, -6, -5, -4, -3, -2, -1, 0, 1, 2, 3, 4, 5, 6};
+		final long[] bounds = new long[indexes.length];
+		splitter.bounds(inputString, indexes, bounds);
+		for (int i = 0; i < indexes.length; i++) {
+			final String expected = expectedSegment(split, notSplit, indexes[i]);
+			assertThat(splitter.select(inputString, indexes[i])).as("index %d", indexes[i]).isEqualTo(expected);
+			assertThat(Splitter.segment(inputString, bounds[i], indexes[i])).as("bounds for index %d", indexes[i]).isEqualTo(expected);
+		}
+	}
+
+	private static String expectedSegment(final String[] split, final boolean notSplit, final int segmentIndex) {
+		if (notSplit) {
+			return Splitter.isFirstOrFinal(segmentIndex) ? split[0] : null;
+		}
+		final int position = segmentIndex < 0 ? split.length + segmentIndex : segmentIndex;
+		return position < 0 || position >= split.length || split[position].isEmpty() ? null : split[position];
+	}
+
+	@DisplayName("SPLIT: Segment index")
+	@ParameterizedTest(name = "{displayName}:{index} => expectedResult={0}, userAttribString={1}, segmentIndex={2}")
+	@CsvSource(delimiter = ';', value = {
+		"a;a|b|c|d|e;0",
+		"c;a|b|c|d|e;2",
+		"e;a|b|c|d|e;-1",
+		"d;a|b|c|d|e;-2",
+		"a;a|b|c|d|e;-5",
+		";a|b|c|d|e;5",
+		";a|b|c|d|e;-6",
+		"abc;abc;0",
+		"abc;abc;-1",
+		";abc;1"
+	})
+	public void splitValueSegmentIndexTest(String result, String userAttribString, int segmentIndex) {
+		assertThat(UserAttributeSplitterMapper.splitValue(userAttribString, "|", SplitMode.LITERAL, segmentIndex, false))
+				.isEqualTo(result);
+	}
+
+	@Test
+	public void shouldSplitValuesOnSegmentIndex() {
+		assertThat(UserAttributeSplitterMapper.splitValues(Arrays.asList("a|b|c", "d|e", "f"), "|", SplitMode.LITERAL, 1, false))
+				.isEqualTo(Arrays.asList("b", "e"));
+		assertThat(UserAttributeSplitterMapper.splitValues(Arrays.asList("a|b|c", "d|e", "f"), "|", SplitMode.LITERAL, -2, false))
+				.isEqualTo(Arrays.asList("b", "d"));
+	}
+
+	@Test
+	public void shouldMapSegmentIndexOverFinalValue() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "|");
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.LITERAL.getConfigValue());
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.SEGMENT_INDEX, "2");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "tenant=0##role=-2");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("acme|eu|admin|read|write"), config);
+
+		assertThat(accessToken.getOtherClaims())
+				.containsEntry(CLAIM_NAME, "admin")
+				.containsEntry("tenant", "acme")
+				.containsEntry("role", "read");
+	}
+
+	@Test
+	public void shouldFallBackToFinalValueOnInvalidSegmentIndex() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.SEGMENT_INDEX, "third");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("paul@test-email.com.au"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo("test-email.com.au");
+	}
+
+	@Test
+	public void shouldStopRegexAtBudget() {
+		final Splitter splitter = Splitter.compile("(a+)+b", SplitMode.REGEX, 1000);
+
+		assertThatThrownBy(() -> splitter.select("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!", false))
+				.isInstanceOf(SplitBudgetExceededException.class);
+		assertThat(splitter.select("xaaab", false)).isEqualTo("x");
+		assertThat(UserAttributeSplitterMapper.splitValue("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!", "(a+)+b", false, false))
+				.isEqualTo("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!");
+	}
+
+	@Test
+	public void shouldCountBudgetOverrunOutsideOfMapper() {
+		final char[] run = new char[2000];
+		Arrays.fill(run, 'a');
+		final String value = new String(run) + "!";
+		final long budgetExceeded = SplitPatternCache.shared().getBudgetExceeded();
+
+		assertThat(UserAttributeSplitterMapper.splitValue(value, "(a+)+b", false, false)).isEqualTo(value);
+		assertThat(UserAttributeSplitterMapper.splitValue(value, "(a+)+b", false, true)).isNull();
+		assertThat(SplitPatternCache.shared().getBudgetExceeded() - budgetExceeded).isEqualTo(2);
+	}
+
+	@Test
+	public void shouldRejectInvalidRegexOnSave() {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setConfig(createConfig());
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "^^(&*");
+
+		assertThatThrownBy(() -> new UserAttributeSplitterMapper().validateConfig(null, null, null, mappingModel))
+				.isInstanceOf(ProtocolMapperConfigException.class)
+				.hasMessageContaining("Split Token is not a valid regular expression");
+	}
+
+	@Test
+	public void shouldRejectMissingExtractGroupOnSave() {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setConfig(createConfig());
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.EXTRACT.getConfigValue());
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "^CN=(?<cn>[^,]+)");
+		final UserAttributeSplitterMapper mapper = new UserAttributeSplitterMapper();
+
+		for (String extractGroup : Arrays.asList("2", "ou", "-1")) {
+			mappingModel.getConfig().put(UserAttributeSplitterMapper.EXTRACT_GROUP, extractGroup);
+			assertThatThrownBy(() -> mapper.validateConfig(null, null, null, mappingModel)).as(extractGroup)
+					.isInstanceOf(ProtocolMapperConfigException.class)
+					.hasMessageContaining("Extract Group is not valid");
+		}
+	}
+
+	@Test
+	public void shouldOnlyExtractGroupNamesOfPattern() {
+		// the group name only appears as quoted text and in a comment, neither is a group.
+		for (String splitToken : Arrays.asList("^CN=(?<cn>[^,]+),\\Q(?<ou>x)\\E", "(?x)^CN=(?<cn>[^,]+) # (?<ou>x)")) {
+			assertThatThrownBy(() -> Splitter.compile(splitToken, SplitMode.EXTRACT, 0, "ou")).as(splitToken)
+					.isInstanceOf(IllegalArgumentException.class)
+					.hasMessageContaining("no group named ou");
+			assertThat(Splitter.compile(splitToken, SplitMode.EXTRACT, 0, "cn").select("CN=alice,(?<ou>x)", 0)).isEqualTo("alice");
+		}
+	}
+
+	@Test
+	public void shouldExtractGroupIntoClaim() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.EXTRACT.getConfigValue());
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "^CN=(?<cn>[^,]+),OU=(?<ou>[^,]+)");
+		config.put(UserAttributeSplitterMapper.EXTRACT_GROUP, "ou");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+
+		assertThat(transformAccessToken(givenUserSession("CN=Paul,OU=Staff,DC=example"), config).getOtherClaims())
+				.containsEntry(CLAIM_NAME, "Staff");
+		// a single value the pattern is not found in is a missmatch too, unlike one without the split token.
+		assertThat(transformAccessToken(givenUserSession("OU=Staff,DC=example"), config).getOtherClaims())
+				.doesNotContainKey(CLAIM_NAME);
+
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "cn=0");
+		final AccessToken accessToken = transformAccessToken(
+				givenUserSession("CN=Paul,OU=Staff", "OU=Guests", "CN=Ann,OU=Admin"), config);
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("Staff", "Admin"));
+		// every fan out claim gets the same group, the segment index does not apply to an extract.
+		assertThat(accessToken.getOtherClaims().get("cn")).isEqualTo(Arrays.asList("Staff", "Admin"));
+	}
+
+	@Test
+	public void shouldAcceptValidSplitTokenOnSave() throws ProtocolMapperConfigException {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setConfig(createConfig());
+		final UserAttributeSplitterMapper mapper = new UserAttributeSplitterMapper();
+
+		mapper.validateConfig(null, null, null, mappingModel);
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "[Ss]");
+		mapper.validateConfig(null, null, null, mappingModel);
+		// as a literal, any text is a valid split token.
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_TOKEN, "^^(&*");
+		mappingModel.getConfig().put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.LITERAL.getConfigValue());
+		mapper.validateConfig(null, null, null, mappingModel);
+	}
+
+	@Test
+	public void shouldSplitLargeCollectionsInParallelInOrder() {
+		final List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			values.add(i % 10 == 9 ? "entitlement-" + i : "tenant" + i % 7 + "|role|entitlement-" + i);
+		}
+
+		final List<String> sequential = UserAttributeSplitterMapper.splitValues(values, "|", SplitMode.LITERAL, -1, true, 0);
+		final List<String> parallel = UserAttributeSplitterMapper.splitValues(values, "|", SplitMode.LITERAL, -1, true, 1000);
+
+		assertThat(sequential).hasSize(5000).startsWith("entitlement-0", "entitlement-1");
+		assertThat(parallel).isEqualTo(sequential);
+		// below the threshold the values stay on the calling thread.
+		assertThat(ParallelSplit.isParallel(999, 1000)).isFalse();
+		assertThat(ParallelSplit.isParallel(5000, 0)).isFalse();
+	}
+
+	@Test
+	public void shouldMapLargeAttributeInParallelInOrder() {
+		final String[] attributeValues = new String[2000];
+		final List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < attributeValues.length; i++) {
+			attributeValues[i] = "user" + i + "@domain" + i;
+			expected.add("domain" + i);
+		}
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.PARALLEL_THRESHOLD, "500");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession(attributeValues), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(expected);
+	}
+
+	@Test
+	public void shouldStopParallelSplitOnceClaimIsFull() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.PARALLEL_THRESHOLD, "500");
+		config.put(UserAttributeSplitterMapper.MAX_VALUES, "10");
+
+		final SplitPlan plan = givenPlan("parallel-budget-test", config);
+		try {
+			final AccessToken accessToken = mapValues(plan, givenDomains(20000));
+
+			assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(givenDomains(10).stream()
+					.map(value -> value.substring(value.indexOf('@') + 1)).collect(Collectors.toList()));
+			assertThat(plan.getMetrics().getTruncations()).isEqualTo(1);
+			// only the first round of chunks was split.
+			assertThat(plan.getMetrics().getValuesProcessed()).isLessThan(20000);
+		} finally {
+			SplitMetricsRegistry.shared().remove("parallel-budget-test");
+		}
+	}
+
+	@Test
+	public void shouldSplitFanOutOnRequestThread() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.PARALLEL_THRESHOLD, "1");
+		config.put(UserAttributeSplitterMapper.MAX_VALUES, "2");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "domain=final");
+
+		final SplitPlan plan = givenPlan("fan-out-serial-test", config);
+		try {
+			final AccessToken accessToken = mapValues(plan, givenDomains(2000));
+
+			assertThat(accessToken.getOtherClaims().get("domain")).isEqualTo(Arrays.asList("domain0", "domain1"));
+			// the values are split one at a time on this thread, and stop at the first that fits no claim.
+			assertThat(plan.getMetrics().getValuesProcessed()).isEqualTo(3);
+		} finally {
+			SplitMetricsRegistry.shared().remove("fan-out-serial-test");
+		}
+	}
+
+	private static SplitPlan givenPlan(final String mapperId, final Map<String, String> config) {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		mappingModel.setId(mapperId);
+		mappingModel.setConfig(config);
+		return SplitPlan.compile(mappingModel);
+	}
+
+	private static AccessToken mapValues(final SplitPlan plan, final List<String> attributeValue) {
+		final ProtocolMapperModel mappingModel = new ProtocolMapperModel();
+		final MappedClaims mapped = new MappedClaims(plan);
+		UserAttributeSplitterMapper.mapValues(mapped, mappingModel, plan, attributeValue);
+		final AccessToken accessToken = new AccessToken();
+		mapped.applyTo(accessToken);
+		return accessToken;
+	}
+
+	private static List<String> givenDomains(final int count) {
+		final List<String> values = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			values.add("user" + i + "@domain" + i);
+		}
+		return values;
+	}
+
+	@Test
+	public void shouldDropDuplicatesInFirstSeenOrder() {
+		final List<String> values = Arrays.asList("a@two", "b@one", "c@two", "d@three", "e@one");
+
+		assertThat(UserAttributeSplitterMapper.splitValues(values, "@", SplitMode.LITERAL, -1, false, 0, true))
+				.isEqualTo(Arrays.asList("two", "one", "three"));
+		assertThat(UserAttributeSplitterMapper.splitValues(values, "@", SplitMode.LITERAL, -1, false, 2, true))
+				.isEqualTo(Arrays.asList("two", "one", "three"));
+		assertThat(UserAttributeSplitterMapper.splitValues(values, "@", SplitMode.LITERAL, -1, false, 0, false))
+				.hasSize(5);
+	}
+
+	@Test
+	public void shouldMapDistinctValues() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.DISTINCT, "true");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "user=first");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("a@two", "b@one", "a@one", "c@two"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("two", "one"));
+		assertThat(accessToken.getOtherClaims().get("user")).isEqualTo(Arrays.asList("a", "b", "c"));
+	}
+
+	@Test
+	public void shouldStopAtMaxValues() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.MAX_VALUES, "2");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "domain=final");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("a@x", "b@y", "c@z"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "b"));
+		assertThat(accessToken.getOtherClaims().get("domain")).isEqualTo(Arrays.asList("x", "y"));
+	}
+
+	@Test
+	public void shouldStopAtMaxBytes() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.MAX_BYTES, "5");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("ab@x", "c\u00e9@y", "d@z"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("ab", "c\u00e9"));
+	}
+
+	@Test
+	public void shouldLeaveOutSingleValueOverMaxBytes() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.MAX_BYTES, "3");
+
+		assertThat(transformAccessToken(givenUserSession("long@x"), config).getOtherClaims()).doesNotContainKey(CLAIM_NAME);
+		assertThat(transformAccessToken(givenUserSession("abc@x"), config).getOtherClaims().get(CLAIM_NAME)).isEqualTo("abc");
+	}
+
+	@Test
+	public void shouldTransformEveryClaimValue() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, ":");
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.LITERAL.getConfigValue());
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.DISTINCT, "true");
+		config.put(UserAttributeSplitterMapper.TRANSFORMS, "trim##lowercase##strip-prefix=role_");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "tenant=0");
+
+		final AccessToken accessToken = transformAccessToken(
+				givenUserSession("Acme: ROLE_Admin", "acme:role_admin ", "Globex:ROLE_READ", "ROLE_Solo"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("acme", "globex", "solo"));
+		assertThat(accessToken.getOtherClaims().get("tenant")).isEqualTo(Arrays.asList("acme", "globex", "solo"));
+	}
+
+	@Test
+	public void shouldSkipEmptySegmentsOfMultipleValues() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "|");
+		config.put(UserAttributeSplitterMapper.SPLIT_MODE, SplitMode.LITERAL.getConfigValue());
+		config.put(ProtocolMapperUtils.MULTIVALUED, "true");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("|a", "b|c", "|"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("b"));
+	}
+
+	@Test
+	public void shouldStopAtFirstResultWhenNotMultivalued() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("nosplit", "a@b", "c@d"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo("a");
+	}
+
+	@Test
+	public void shouldHonourSplitMultivalued() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("a@b", "c@d"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "c"));
+	}
+
+	@Test
+	public void shouldSplitMultipleValuesOnRegex() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "[Ss]");
+		config.put(UserAttributeSplitterMapper.FINAL_VALUE, "true");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("1S2", "3s4", "56"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("2", "4"));
+	}
+
+	@Test
+	public void shouldFanOutSingleValueIntoSeveralClaims() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "email_domain=final##email_user = first##broken##other=middle");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("paul@test-email.com.au"), config);
+
+		assertThat(accessToken.getOtherClaims())
+				.containsEntry(CLAIM_NAME, "paul")
+				.containsEntry("email_domain", "test-email.com.au")
+				.containsEntry("email_user", "paul")
+				.doesNotContainKey("other")
+				.hasSize(3);
+	}
+
+	@Test
+	public void shouldFanOutMultipleValuesIntoSeveralClaims() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		config.put(UserAttributeSplitterMapper.MULTIVALUED, "true");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "email_domain=final");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("a@one", "nosplit", "b@two"), config);
+
+		assertThat(accessToken.getOtherClaims().get(CLAIM_NAME)).isEqualTo(Arrays.asList("a", "b"));
+		assertThat(accessToken.getOtherClaims().get("email_domain")).isEqualTo(Arrays.asList("one", "two"));
+	}
+
+	@Test
+	public void shouldFanOutFirstResultWhenNotMultivalued() {
+		final Map<String, String> config = createConfig();
+		config.put(UserAttributeSplitterMapper.SPLIT_TOKEN, "@");
+		config.put(UserAttributeSplitterMapper.SKIP_MISSMATCH, "true");
+		config.put(UserAttributeSplitterMapper.FAN_OUT, "email_domain=final");
+
+		final AccessToken accessToken = transformAccessToken(givenUserSession("nosplit", "a@one", "b@two"), config);
+
+		assertThat(accessToken.getOtherClaims())
+				.containsEntry(CLAIM_NAME, "a")
+				.containsEntry("email_domain", "one");
+	}
+
+	@Test
+	public void splitModeFromConfigTest() {
+		assertThat(SplitMode.fromConfig(null)).isEqualTo(SplitMode.REGEX);
+		assertThat(SplitMode.fromConfig("")).isEqualTo(SplitMode.REGEX);
+		assertThat(SplitMode.fromConfig("regex")).isEqualTo(SplitMode.REGEX);
+		assertThat(SplitMode.fromConfig("literal")).isEqualTo(SplitMode.LITERAL);
+		assertThat(SplitMode.fromConfig(" LITERAL ")).isEqualTo(SplitMode.LITERAL);
+		assertThat(SplitMode.fromConfig("extract")).isEqualTo(SplitMode.EXTRACT);
+	}
+
 	@Test
 	@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
 	public void dropMultiLetterTest() {
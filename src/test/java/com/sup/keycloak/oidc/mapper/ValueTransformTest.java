@@ -0,0 +1,51 @@
+package com.sup.keycloak.oidc.mapper;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SuppressWarnings({"PMD.AvoidDuplicateLiterals"})
+public class ValueTransformTest {
+
+	@ParameterizedTest(name = "{index} => value={0}, transforms={1}, expected={2}")
+	@CsvSource(delimiter = ';', value = {
+		"'  ROLE_Admin ';trim##lowercase##strip-prefix=role_;admin",
+		"'  ROLE_Admin ';trim##strip-prefix=ROLE_##uppercase;ADMIN",
+		"ROLE_Admin;lowercase##strip-prefix=ROLE_;role_admin",
+		"ROLE_Admin;strip-prefix=ROLE_##lowercase;admin",
+		"tenant.example.com;strip-suffix=.com##max-length=6;tenant",
+		"Tenant;uppercase##lowercase;tenant",
+		"'a ';'strip-suffix= ';a",
+		"abc;max-length=10;abc",
+		"role_;strip-prefix=role_;",
+		"'   ';trim;",
+		"abc;unknown##max-length=x##max-length=2;ab",
+		"straße;max-length=6##uppercase;STRASS",
+		"straße;max-length=8##uppercase##max-length=7;STRASSE"
+	})
+	public void shouldTransformInOrder(String value, String transforms, String expected) {
+		final ValueTransform transform = ValueTransform.fromConfig(transforms);
+
+		assertThat(transform.apply(value)).isEqualTo(expected);
+		// the same result on the bounds of a segment inside a longer value.
+		assertThat(transform.segment("x@" + value + "@y", Splitter.pack(2, 2 + value.length()))).isEqualTo(expected);
+	}
+
+	@Test
+	public void shouldNotCutSurrogatePair() {
+		assertThat(ValueTransform.fromConfig("max-length=2").apply("a😀b")).isEqualTo("a");
+		assertThat(ValueTransform.fromConfig("max-length=3").apply("a😀b")).isEqualTo("a😀");
+	}
+
+	@Test
+	public void shouldCutOnceWhenNothingChanges() {
+		final String value = "already-lower";
+
+		assertThat(ValueTransform.fromConfig("trim##lowercase").apply(value)).isSameAs(value);
+		assertThat(ValueTransform.fromConfig("").isNone()).isTrue();
+		assertThat(ValueTransform.fromConfig("unknown").isNone()).isTrue();
+		assertThat(ValueTransform.NONE.segment(value, Splitter.NOT_SPLIT)).isSameAs(value);
+	}
+}